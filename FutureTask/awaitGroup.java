@@ -0,0 +1,141 @@
+/**
+ * 一次等待一组任务:全部完成(awaitAll),任意一个完成(awaitAny),至少n个完成(awaitN),都支持超时
+ * 原来的做法是对每个任务依次调用get(),每个任务都可能分配一个WaitNode,停车一次,唤醒一次;
+ * 要实现"谁先完成用谁",只能轮询isDone()
+ * 现在等待线程只停车一次:
+ * 1. 所有任务共用一个计数器GroupLatch,初始值是需要等待完成的任务数
+ * 2. 在每个还没有完成的任务上注册一个回调节点(见onComplete.java),finishCompletion()触发时计数器减1
+ * 3. 把计数器减到0的那一次负责唤醒等待线程,所以等待线程只会被唤醒一次
+ * 已经完成的任务直接计数,不注册回调;计数已经满足之后,剩下的任务也不再注册
+ * 等待超时或者满足条件返回之后,作废没有触发的回调节点,并从任务的等待栈中摘除,
+ * 所以对同一组任务反复调用带超时的awaitAny()轮询,等待栈也不会越来越长
+ */
+
+/**
+ * 等待全部任务完成,不关心结果,结果通过各个任务的get()读取,此时get()不会再阻塞
+ */
+public static void awaitAll(Collection<? extends FutureTask<?>> tasks) throws InterruptedException {
+    awaitCompletions(tasks, tasks.size(), false, 0L);
+}
+
+/**
+ * 等待全部任务完成,超时返回false
+ */
+public static boolean awaitAll(Collection<? extends FutureTask<?>> tasks, long timeout, TimeUnit unit)
+    throws InterruptedException {
+    return awaitCompletions(tasks, tasks.size(), true, unit.toNanos(timeout)).satisfied();
+}
+
+/**
+ * 等待任意一个任务完成,返回最先完成的任务
+ */
+public static <T extends FutureTask<?>> T awaitAny(Collection<T> tasks) throws InterruptedException {
+    return awaitAny(tasks, false, 0L);
+}
+
+/**
+ * 等待任意一个任务完成,返回最先完成的任务,超时返回null
+ */
+public static <T extends FutureTask<?>> T awaitAny(Collection<T> tasks, long timeout, TimeUnit unit)
+    throws InterruptedException {
+    return awaitAny(tasks, true, unit.toNanos(timeout));
+}
+
+@SuppressWarnings("unchecked")
+private static <T extends FutureTask<?>> T awaitAny(Collection<T> tasks, boolean timed, long nanos)
+    throws InterruptedException {
+    if (tasks.isEmpty())
+        throw new IllegalArgumentException();
+    return (T) awaitCompletions(tasks, 1, timed, nanos).first.get();
+}
+
+/**
+ * 等待至少n个任务完成
+ */
+public static void awaitN(Collection<? extends FutureTask<?>> tasks, int n) throws InterruptedException {
+    awaitCompletions(tasks, n, false, 0L);
+}
+
+/**
+ * 等待至少n个任务完成,超时返回false
+ */
+public static boolean awaitN(Collection<? extends FutureTask<?>> tasks, int n, long timeout, TimeUnit unit)
+    throws InterruptedException {
+    return awaitCompletions(tasks, n, true, unit.toNanos(timeout)).satisfied();
+}
+
+/**
+ * 注册计数器,然后停车等待计数器减到0
+ */
+private static GroupLatch awaitCompletions(Collection<? extends FutureTask<?>> tasks, int n,
+                                           boolean timed, long nanos) throws InterruptedException {
+    if (n < 0 || n > tasks.size())
+        throw new IllegalArgumentException();
+    final long deadline = timed ? System.nanoTime() + nanos : 0L;
+    final GroupLatch g = new GroupLatch(n, Thread.currentThread());
+    // 注册的回调节点,返回之前作废
+    ArrayList<FutureTask<?>.Completion> nodes = new ArrayList<FutureTask<?>.Completion>();
+    try {
+        for (FutureTask<?> t : tasks) {
+            // 计数已经满足,剩下的任务不再注册
+            if (g.satisfied())
+                break;
+            if (t.state > COMPLETING)
+                g.arrive(t);
+            else {
+                FutureTask<?>.Completion c = t.new Completion(() -> g.arrive(t));
+                nodes.add(c);
+                t.pushCompletion(c);
+            }
+        }
+        while (!g.satisfied()) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (timed) {
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0L)
+                    break;
+                LockSupport.parkNanos(g, nanos);
+            } else
+                LockSupport.park(g);
+        }
+    } finally {
+        // 之后才触发的回调不会再唤醒这个线程
+        g.waiter = null;
+        // 已经触发的节点作废失败,什么也不做;没有触发的节点从等待栈中摘除
+        for (FutureTask<?>.Completion c : nodes)
+            c.discard();
+    }
+    return g;
+}
+
+/**
+ * 一组任务共用的完成计数器
+ */
+static final class GroupLatch {
+    // 还需要等待完成的任务数,减到0时唤醒等待线程,之后继续完成的任务会把它减成负数,不再唤醒
+    final AtomicInteger remaining;
+    // 最先完成的任务,awaitAny()的返回值
+    final AtomicReference<FutureTask<?>> first = new AtomicReference<FutureTask<?>>();
+    volatile Thread waiter;
+
+    GroupLatch(int n, Thread waiter) {
+        this.remaining = new AtomicInteger(n);
+        this.waiter = waiter;
+    }
+
+    boolean satisfied() {
+        return remaining.get() <= 0;
+    }
+
+    void arrive(FutureTask<?> t) {
+        if (first.get() == null)
+            first.compareAndSet(null, t);
+        // 只有减到0的那一次唤醒等待线程
+        if (remaining.decrementAndGet() == 0) {
+            Thread w = waiter;
+            if (w != null)
+                LockSupport.unpark(w);
+        }
+    }
+}
@@ -27,16 +27,34 @@ public V get() throws InterruptedException, ExecutionException {
 }
 
 
+/**
+ * 原来的流程:第一次检查任务没有完成,就创建WaitNode入栈,然后停车,每次调用都有一次分配和一次park/unpark
+ * 扇出场景下的任务通常几微秒内就完成了,停车和唤醒的开销比等待本身还大,所以现在:
+ * 1. 入栈之前先自旋一段时间(只在多核下),自旋的次数按线程自适应:上一次自旋等到了结果,下一次加倍;没等到,下一次减半
+ * 2. WaitNode按线程缓存复用,只有确认finishCompletion()已经不会再访问这个node时才放回缓存,见recycleWaitNode()
+ * 所以等待一个快要完成的任务既不分配对象,也不停车
+ */
 private int awaitDone(boolean timed, long nanos) throws InterruptedException {
     // 设置await的超时时间
     final long deadline = timed ? System.nanoTime() + nanos : 0L;
+    final WaiterCache cache = waiterCache.get();
+    // 先自旋,超时时间太短时不自旋
+    if (MP && (!timed || nanos >= SPIN_FOR_TIMEOUT_THRESHOLD)) {
+        int s = spinForCompletion(cache);
+        if (s > COMPLETING)
+            return s;
+    }
     WaitNode q = null;
     boolean queued = false;
+    // JFR:第一次停车之前才创建事件,没有录制时为null;不停车就能拿到结果的调用不会记录
+    FutureTaskWaitEvent ev = null;
     // 死循环
     for (;;) {
         // 若该线程被打断,则从等待栈中移除该node,同时抛出打断异常
         if (Thread.interrupted()) {
             removeWaiter(q);
+            if (ev != null)
+                ev.finish(state, timed, false);
             throw new InterruptedException();
         }
         // 获取状态
@@ -44,9 +62,11 @@ private int awaitDone(boolean timed, long nanos) throws InterruptedException {
         // 若s > COMPLETING为true:表示任务已经执行完毕,不管是正常结束,异常,取消和被打断
         if (s > COMPLETING) {
             // 对于第一轮自旋,这里肯定是false,直接返回状态值,
-            // 若为true,将q.thread置为null,是为了帮助GC
+            // 若为true,能复用就放回缓存,不能复用就将q.thread置为null,是为了帮助GC
             if (q != null)
-                q.thread = null;
+                recycleWaitNode(cache, q, queued);
+            if (ev != null)
+                ev.finish(s, timed, false);
             return s;
         }
         // COMPLETING其实任务已经执行结束了,只是还没有将状态改变,所以若当前状态为COMPLETING,
@@ -55,8 +75,8 @@ private int awaitDone(boolean timed, long nanos) throws InterruptedException {
             Thread.yield();
         // 第一次自旋能走到这里的,q肯定是null
         else if (q == null)
-            // 创建一个当前线程的node
-            q = new WaitNode();
+            // 优先复用缓存的node,没有才创建一个当前线程的node
+            q = takeWaitNode(cache);
         // 第一次自旋能走到这里的,queued肯定是false
         else if (!queued)
             // 将栈顶的node替换成q,同时将q的后继节点指向waiters(原栈顶node)
@@ -69,14 +89,129 @@ private int awaitDone(boolean timed, long nanos) throws InterruptedException {
             // 若达到超时时间,则移除当前node,且返回任务状态
             if (nanos <= 0L) {
                 removeWaiter(q);
+                if (ev != null)
+                    ev.finish(state, timed, true);
                 return state;
             }
+            if (ev == null)
+                ev = FutureTaskWaitEvent.start(callable);
             // 带等待时间的阻塞
             LockSupport.parkNanos(this, nanos);
         }
-        else
+        else {
+            if (ev == null)
+                ev = FutureTaskWaitEvent.start(callable);
             // 无等待时间的阻塞
             LockSupport.park(this);
+        }
+    }
+}
+
+
+// ---------------------------- FutureTask中新增的字段 ----------------------------
+
+// 多核下才自旋,单核下自旋只会推迟执行任务的线程
+private static final boolean MP = Runtime.getRuntime().availableProcessors() > 1;
+// 剩余的超时时间小于这个值时不自旋,和AQS的spinForTimeoutThreshold一样
+private static final long SPIN_FOR_TIMEOUT_THRESHOLD = 1000L;
+// 自旋次数的范围和初始值
+private static final int MIN_SPINS = 16;
+private static final int MAX_SPINS = 1 << 10;
+private static final int INITIAL_SPINS = 1 << 7;
+// 每个线程一个,所有FutureTask共用:一个线程同一时刻只会在一个任务上等待
+private static final ThreadLocal<WaiterCache> waiterCache = ThreadLocal.withInitial(WaiterCache::new);
+// 正在执行removeWaiter()的线程数,通过UNSAFE和removersOffset修改,removersOffset和waitersOffset一样在静态代码块中初始化
+private volatile int removers;
+
+/**
+ * 线程的等待状态:缓存的空闲node,以及自适应的自旋次数
+ */
+static final class WaiterCache {
+    WaitNode spare;
+    int spins = INITIAL_SPINS;
+}
+
+/**
+ * 入栈之前自旋等待任务完成,返回自旋结束时的状态
+ * 自旋等到了结果,下一次的自旋次数加倍;没等到,说明这个线程等待的任务通常比较慢,下一次减半
+ */
+private int spinForCompletion(WaiterCache cache) {
+    int budget = cache.spins;
+    int s = state;
+    for (int i = 0; i < budget && s <= COMPLETING; i++) {
+        Thread.onSpinWait();
+        s = state;
+    }
+    cache.spins = (s > COMPLETING) ?
+        Math.min(MAX_SPINS, budget << 1) :
+        Math.max(MIN_SPINS, budget >>> 1);
+    return s;
+}
+
+/**
+ * 取出缓存的node,重新绑定到当前线程
+ */
+private static WaitNode takeWaitNode(WaiterCache cache) {
+    WaitNode q = cache.spare;
+    if (q == null)
+        return new WaitNode();
+    cache.spare = null;
+    q.thread = Thread.currentThread();
+    q.next = null;
+    return q;
+}
+
+/**
+ * 任务完成之后回收node
+ * 情况1:node没有入栈,只有当前线程引用它,可以复用
+ * 情况2:node入栈了,q.thread已经被finishCompletion()置为null,finishCompletion()先读取q.next再清空q.thread,
+ *      清空之后就不会再访问q了,可以复用
+ * 情况3:node入栈了,但是q.thread还不为null(例如被虚假唤醒时刚好看到了完成状态),finishCompletion()可能还在遍历,
+ *      不能复用,和原来一样将q.thread置为null帮助GC
+ * 情况2还要求没有其他等待线程正在removeWaiter():finishCompletion()摘下整个栈之前就开始遍历的removeWaiter(),
+ * 可能还拿着q当作前驱节点,修改q.next;finishCompletion()摘下整个栈之后才开始的removeWaiter()读到的是空栈,不会访问q
+ * 超时和被打断时node由removeWaiter()移除,此时同样不知道finishCompletion()是否还在遍历,不复用
+ */
+private void recycleWaitNode(WaiterCache cache, WaitNode q, boolean queued) {
+    if (!queued || (q.thread == null && removers == 0)) {
+        q.thread = null;
+        q.next = null;
+        cache.spare = q;
+    } else
+        q.thread = null;
+}
+
+
+/**
+ * 超时或者被打断时,把node从等待栈中移除:先把node.thread置为null,再遍历整个栈,摘除所有thread为null的node
+ * 和原来相比,多了removers计数,配合recycleWaitNode()判断node能否复用;以及跳过回调节点(见onComplete.java)
+ */
+private void removeWaiter(WaitNode node) {
+    if (node != null) {
+        node.thread = null;
+        UNSAFE.getAndAddInt(this, removersOffset, 1);
+        try {
+            retry:
+            for (;;) {          // restart on removeWaiter race
+                for (WaitNode pred = null, q = waiters, s; q != null; q = s) {
+                    s = q.next;
+                    // 回调节点的thread始终为null,但它不是取消等待的node,不能摘除
+                    if (isLiveNode(q))
+                        pred = q;
+                    else if (pred != null) {
+                        pred.next = s;
+                        if (!isLiveNode(pred)) // check for race
+                            continue retry;
+                    }
+                    else if (!UNSAFE.compareAndSwapObject(this, waitersOffset,
+                                                          q, s))
+                        continue retry;
+                }
+                break;
+            }
+        } finally {
+            UNSAFE.getAndAddInt(this, removersOffset, -1);
+        }
     }
 }
 
@@ -93,3 +228,52 @@ private V report(int s) throws ExecutionException {
     // 任务执行异常,返回执行异常
     throw new ExecutionException((Throwable)x);
 }
+
+
+/**
+ * JFR事件:get()中等待任务完成而停车的时间,超过阈值才记录
+ * 和线程池的TaskExecution事件(见线程池/线程池JFR事件.java)对照,可以看出get()的等待是花在排队上还是执行上
+ */
+@Name("threadpool.FutureTaskWait")
+@Label("FutureTask Wait")
+@Category({"Lock Threadpool", "FutureTask"})
+@Threshold("1 ms")
+static final class FutureTaskWaitEvent extends Event {
+    static final EventType TYPE = EventType.getEventType(FutureTaskWaitEvent.class);
+
+    // 任务的callable,任务执行完之后callable会被置为null,所以在开始等待时读取
+    @Label("Callable Class")
+    Class<?> callableClass;
+
+    // 等待结束时任务的状态,超时时可能仍然是NEW
+    @Label("State")
+    int state;
+
+    @Label("Timed")
+    boolean timed;
+
+    @Label("Timed Out")
+    boolean timedOut;
+
+    /**
+     * 没有录制时返回null,调用方不需要再判断
+     */
+    static FutureTaskWaitEvent start(Callable<?> callable) {
+        if (!TYPE.isEnabled())
+            return null;
+        FutureTaskWaitEvent e = new FutureTaskWaitEvent();
+        e.callableClass = (callable == null) ? null : callable.getClass();
+        e.begin();
+        return e;
+    }
+
+    void finish(int state, boolean timed, boolean timedOut) {
+        end();
+        if (shouldCommit()) {
+            this.state = state;
+            this.timed = timed;
+            this.timedOut = timedOut;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * 完成回调:原来想拿到任务的结果,只能让一个线程阻塞在get()上,成千上万个进行中的请求就要成千上万个停车的线程
+ * 现在可以在任务上注册回调,任务完成(set(),setException(),cancel())时由finishCompletion()触发:
+ * 1. 回调节点Completion是WaitNode的子类,和等待线程的node放在同一个无锁的waiters栈中,注册就是一次CAS入栈
+ * 2. finishCompletion()先唤醒所有等待线程,再按注册顺序执行回调;executor为null时在完成任务的线程中直接执行,否则交给executor
+ * 3. thenApply()返回一个新的FutureTask,源任务成功时计算新的结果,失败和取消也会传递下去,所以回调可以串成链
+ * 任务已经完成时注册的回调立即触发
+ * 注意:WaitNode原来是final类,为了派生Completion去掉了final
+ */
+
+/**
+ * 注册回调,在完成任务的线程中直接执行
+ * onSuccess,onFailure,onCancel都可以为null,为null表示不关心这种结果
+ */
+public void onComplete(Consumer<? super V> onSuccess,
+                       Consumer<? super Throwable> onFailure,
+                       Runnable onCancel) {
+    onComplete(onSuccess, onFailure, onCancel, null);
+}
+
+/**
+ * 注册回调,交给executor执行;executor为null时在完成任务的线程中直接执行
+ * executor拒绝执行时退化为直接执行,保证回调不会丢失(串成链时,下游的任务一定会完成)
+ */
+public void onComplete(Consumer<? super V> onSuccess,
+                       Consumer<? super Throwable> onFailure,
+                       Runnable onCancel,
+                       Executor executor) {
+    pushCompletion(new Completion(onSuccess, onFailure, onCancel, executor));
+}
+
+/**
+ * 源任务成功时,用fn把结果转换成新的结果;源任务失败时,新任务以同样的异常失败;源任务被取消时,新任务也被取消
+ * 返回的新任务可以继续thenApply()/onComplete(),串成链;取消新任务不会取消源任务
+ */
+public <U> FutureTask<U> thenApply(Function<? super V, ? extends U> fn, Executor executor) {
+    if (fn == null)
+        throw new NullPointerException();
+    // 只有源任务的状态是NORMAL时,新任务才会执行,此时outcome就是源任务的结果
+    @SuppressWarnings("unchecked")
+    final FutureTask<U> d = new FutureTask<U>(() -> fn.apply((V) outcome));
+    onComplete(v -> d.run(), d::setException, () -> d.cancel(false), executor);
+    return d;
+}
+
+/**
+ * 回调节点入栈,和awaitDone()中等待线程的node入栈一样是一次CAS
+ */
+private void pushCompletion(Completion c) {
+    for (WaitNode h;;) {
+        // 任务已经完成,直接触发
+        if (state > COMPLETING) {
+            c.tryFire();
+            return;
+        }
+        c.next = h = waiters;
+        if (UNSAFE.compareAndSwapObject(this, waitersOffset, h, c))
+            break;
+    }
+    // 入栈成功,但是finishCompletion()可能在检查状态之后,入栈之前就已经摘下了整个栈,这个节点不会再被遍历到
+    // 所以入栈之后再检查一次;和finishCompletion()同时触发时,由tryFire()中的CAS保证只执行一次
+    if (state > COMPLETING)
+        c.tryFire();
+}
+
+/**
+ * 回调节点,thread始终为null;removeWaiter()不能把它当作已经取消等待的node摘除,见isLiveNode()
+ */
+final class Completion extends WaitNode implements Runnable {
+    final Consumer<? super V> onSuccess;
+    final Consumer<? super Throwable> onFailure;
+    final Runnable onCancel;
+    // 不区分结果,任务以任何方式完成都执行,不为null时忽略上面三个回调,见awaitGroup.java
+    final Runnable always;
+    final Executor executor;
+    // 0:还没有触发;1:已经触发
+    volatile int fired;
+
+    Completion(Consumer<? super V> onSuccess, Consumer<? super Throwable> onFailure,
+               Runnable onCancel, Executor executor) {
+        thread = null;
+        this.onSuccess = onSuccess;
+        this.onFailure = onFailure;
+        this.onCancel = onCancel;
+        this.always = null;
+        this.executor = executor;
+    }
+
+    Completion(Runnable always) {
+        thread = null;
+        this.onSuccess = null;
+        this.onFailure = null;
+        this.onCancel = null;
+        this.always = always;
+        this.executor = null;
+    }
+
+    void tryFire() {
+        if (!FIRED.compareAndSet(this, 0, 1))
+            return;
+        if (executor != null) {
+            try {
+                executor.execute(this);
+                return;
+            } catch (RejectedExecutionException ignore) {
+                // 退化为直接执行
+            }
+        }
+        run();
+    }
+
+    /**
+     * 作废还没有触发的回调节点,并把它从等待栈中摘除,见awaitGroup.java
+     * 和tryFire()竞争同一个FIRED,作废成功之后回调不会再执行
+     */
+    void discard() {
+        if (FIRED.compareAndSet(this, 0, 1))
+            removeWaiter(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void run() {
+        int s = state;
+        try {
+            if (always != null)
+                always.run();
+            else if (s == NORMAL) {
+                if (onSuccess != null)
+                    onSuccess.accept((V) outcome);
+            } else if (s == EXCEPTIONAL) {
+                if (onFailure != null)
+                    onFailure.accept((Throwable) outcome);
+            } else if (onCancel != null)
+                onCancel.run();
+        } catch (Throwable ex) {
+            // 回调的异常不能影响其他回调,也不能影响完成任务的线程
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+        }
+    }
+}
+
+@SuppressWarnings("rawtypes")
+private static final AtomicIntegerFieldUpdater<FutureTask.Completion> FIRED =
+    AtomicIntegerFieldUpdater.newUpdater(FutureTask.Completion.class, "fired");
+
+/**
+ * 等待栈中还有效的node:等待线程的node看thread是否为null,回调节点看是否已经被作废(见discard())
+ * 任务完成之前回调节点不会触发,所以栈中fired=1的回调节点只可能是被作废的
+ */
+private static boolean isLiveNode(WaitNode q) {
+    return q.thread != null ||
+        (q instanceof FutureTask.Completion && ((FutureTask<?>.Completion) q).fired == 0);
+}
@@ -65,24 +65,34 @@ protected void set(V v) {
 
 
 private void finishCompletion() {
+    // 栈中的回调节点(见onComplete.java),先唤醒全部等待线程,再按注册顺序执行回调,慢回调不会推迟等待线程被唤醒
+    // 没有注册回调时不会创建这个列表
+    ArrayList<Completion> callbacks = null;
     // 判断栈顶的node是不是null,然后进入循环
     for (WaitNode q; (q = waiters) != null;) {
         // 通过CAS操作将栈顶node设置为null
         if (UNSAFE.compareAndSwapObject(this, waitersOffset, q, null)) {
             // 死循环遍历栈空间的node,唤醒所有阻塞等待执行结果的线程,任务执行完毕已经有结果,可以去获取返回值了
+            // 先读取q.next,再清空q.thread:等待线程看到q.thread为null之后会复用这个node(见get.java的recycleWaitNode()),
+            // 所以清空q.thread之后就不能再访问q了
             for (;;) {
+                WaitNode next = q.next;
+                // 唤醒的线程对应node移除栈,帮助gc
+                q.next = null;
                 Thread t = q.thread;
-                if (t != null) {
+                if (q instanceof Completion) {
+                    // 不能借用q.next把回调节点串起来:摘下整个栈之前就开始遍历的removeWaiter()可能还会修改它
+                    if (callbacks == null)
+                        callbacks = new ArrayList<Completion>();
+                    callbacks.add((Completion) q);
+                } else if (t != null) {
                     q.thread = null;
                     // 唤醒线程
                     LockSupport.unpark(t);
                 }
-                WaitNode next = q.next;
                 // 栈空间已经没有node了,直接跳出循环
                 if (next == null)
                     break;
-                // 唤醒的线程对应node移除栈,帮助gc
-                q.next = null;
                 q = next;
             }
             break;
@@ -92,6 +102,11 @@ private void finishCompletion() {
     done();
     // 已经执行完的任务,置为null
     callable = null;
+    // 执行回调,栈是后进先出的,倒序遍历就是注册顺序
+    if (callbacks != null) {
+        for (int i = callbacks.size() - 1; i >= 0; i--)
+            callbacks.get(i).tryFire();
+    }
 }
 
 
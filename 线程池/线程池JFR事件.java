@@ -0,0 +1,97 @@
+/**
+ * 线程池的JFR(Java Flight Recorder)事件
+ * 采样分析器只能看到大量时间花在LockSupport.park()上,看不到原因:是任务在排队,在执行,被拒绝,还是线程在反复创建销毁
+ * 这里在线程池的慢路径上埋点,和FutureTask的等待事件(见FutureTask/get.java),读锁的竞争事件(见读写锁/读锁加锁流程.java)
+ * 一起录制,一次录制就能把尾延迟从提交到get()返回串起来
+ * 1. TaskExecution:runWorker()中任务的执行,开始时间和结束时间就是任务开始和结束执行的时间,queueWait是入队到开始执行的排队时间
+ *    入队时间由运行指标记录(见enableMetrics()),没有开启运行指标,或者任务没有入队时间字段(见markEnqueued())时queueWait为-1;开始录制不会改变入队的流程
+ * 2. TaskRejected:reject()中任务被拒绝
+ * 3. WorkerSpawn:addWorker()/addWorkers()中创建并启动工作线程
+ * 4. WorkerExit:processWorkerExit()中工作线程退出
+ * 快路径上没有开销:每个事件类型的EventType缓存在静态字段中,没有录制或者事件被关闭时,只多一次isEnabled()判断,不会创建事件对象;
+ * 录制时按@Threshold过滤,只有耗时超过阈值的事件才会写入,阈值可以在.jfc配置文件中修改
+ */
+
+/**
+ * 任务的执行,耗时超过阈值才记录
+ */
+@Name("threadpool.TaskExecution")
+@Label("Task Execution")
+@Category({"Lock Threadpool", "Pool"})
+@Threshold("10 ms")
+static final class TaskExecutionEvent extends Event {
+    static final EventType TYPE = EventType.getEventType(TaskExecutionEvent.class);
+
+    @Label("Task Class")
+    Class<?> taskClass;
+
+    // 入队到开始执行的时间,不知道入队时间时(没有开启运行指标,或者是firstTask)为-1
+    @Label("Queue Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueWait;
+
+    @Label("Failed")
+    boolean failed;
+}
+
+/**
+ * 任务被拒绝,每一次都记录
+ */
+@Name("threadpool.TaskRejected")
+@Label("Task Rejected")
+@Category({"Lock Threadpool", "Pool"})
+static final class TaskRejectedEvent extends Event {
+    static final EventType TYPE = EventType.getEventType(TaskRejectedEvent.class);
+
+    @Label("Task Class")
+    Class<?> taskClass;
+
+    @Label("Pool Size")
+    int poolSize;
+
+    @Label("Queue Size")
+    int queueSize;
+
+    @Label("Shutdown")
+    boolean shutdown;
+}
+
+/**
+ * 创建并启动工作线程,持续时间就是创建和启动线程的耗时;addWorkers()批量创建时一批只记录一个事件
+ */
+@Name("threadpool.WorkerSpawn")
+@Label("Worker Spawn")
+@Category({"Lock Threadpool", "Pool"})
+static final class WorkerSpawnEvent extends Event {
+    static final EventType TYPE = EventType.getEventType(WorkerSpawnEvent.class);
+
+    @Label("Core")
+    boolean core;
+
+    // 启动成功的工作线程数,addWorker()中是0或1
+    @Label("Started")
+    int started;
+
+    @Label("Pool Size")
+    int poolSize;
+}
+
+/**
+ * 工作线程退出
+ */
+@Name("threadpool.WorkerExit")
+@Label("Worker Exit")
+@Category({"Lock Threadpool", "Pool"})
+static final class WorkerExitEvent extends Event {
+    static final EventType TYPE = EventType.getEventType(WorkerExitEvent.class);
+
+    // 任务抛出异常导致的退出
+    @Label("Completed Abruptly")
+    boolean completedAbruptly;
+
+    @Label("Completed Tasks")
+    long completedTasks;
+
+    @Label("Pool Size")
+    int poolSize;
+}
@@ -1,4 +1,4 @@
-private Runnable getTask() {
+private Runnable getTask(Worker w) {
     // 是否有超时时间
     boolean timedOut = false;
 
@@ -13,7 +13,7 @@ private Runnable getTask() {
         // 情况2:线程池状态等于SHUTDOWN,且工作队列为空,由于SHUTDOWN状态的线程池不会接收新的任务,只会在处理完工作队列中的任务,就切换到STOP状态
         //      所以,当工作队列为空时,处理流程和情况1相同
         // 情况3:线程池状态等于SHUTDOWN,且工作队列不为空,跳过;这个是shutdown()明明打断了所有的工作线程,但是只有空闲线程会被销毁的原因,结合timed变量和poll()方法理解
-        if (rs >= SHUTDOWN && (rs >= STOP || workQueue.isEmpty())) {
+        if (rs >= SHUTDOWN && (rs >= STOP || isQueueEmpty())) {
             decrementWorkerCount();
             return null;
         }
@@ -24,29 +24,65 @@ private Runnable getTask() {
         // timed=true的意思:当前线程若从工作队列中获取任务超时,可以被销毁回收
         boolean timed = allowCoreThreadTimeOut || wc > corePoolSize;
 
-        // 情况1:工作线程数大于最大线程数,需要减少工作线程数,故CAS操作将工作线程数减1,返回null
+        // 情况1:工作线程数大于最大线程数(虚拟线程模式下是最大并发数,见maxWorkers()),需要减少工作线程数,故CAS操作将工作线程数减1,返回null
         // 情况2:(timed && timedOut)=true且工作线程数大于1或者工作队列为空(这个绝大多数情况都是true),
         //      CAS操作将工作线程数减1,返回null(timedOut=true的意义后面说明);
         //      情况2意思是,当前工作线程已经被标记为销毁,但是,当工作队列还有任务为处理,且当前工作线程数只有一个或者没有,
         //      则此线程不会被销毁(毕竟就没人干活,不能再开除了),其余的情形都会被销毁
-        if ((wc > maximumPoolSize || (timed && timedOut))
-            && (wc > 1 || workQueue.isEmpty())) {
+        if ((wc > maxWorkers() || (timed && timedOut))
+            && (wc > 1 || isQueueEmpty())) {
             if (compareAndDecrementWorkerCount(c))
                 return null;
             continue;
         }
 
+        // 取消即清理:被取消的任务攒够了一批,由工作线程在取任务之前清理,不在调用cancel()的线程中清理,见purgeCancelled()
+        if (purgeRequested)
+            purgeCancelled();
+
         try {
             // timed=true:将调用poll()阻塞获取任务,超时将返回null
             // timed=false:将调用take()阻塞获取任务,不会超时,直到获取到任务才会返回
             // 注意点:poll()和take()方法都能响应打断
-            Runnable r = timed ?
-                workQueue.poll(keepAliveTime, TimeUnit.NANOSECONDS) :
-                workQueue.take();
+            // 工作窃取模式下,按 本地deque -> 窃取其他deque -> workQueue 的顺序取任务,都没有才停车,超时和打断的语义不变
+            // 开启集中回收空闲线程时,也是在空闲栈上停车,空闲超过keepAliveTime由回收线程唤醒,见reapIdleWorkers()
+            // 开启自旋时,先自旋一段时间非阻塞地取任务,取不到再阻塞,见spinForTask()
+            // 等待任务期间计入空闲线程数,先扩容再入队的提交策略根据它判断是否需要新建线程
+            Runnable r;
+            idleWorkerCount.incrementAndGet();
+            // 空闲线程也是空位(对于SynchronousQueue,只有空闲线程才能接收任务),通知等待空位的提交者
+            signalSpaceAvailable();
+            try {
+                r = spinForTask(w);
+                if (r == null)
+                    r = workStealing || idleReaper ?
+                        // 集中回收模式下无限期停车,由回收线程判断是否超时
+                        awaitStealableTask(w, timed && !idleReaper, keepAliveTime) :
+                        timed ?
+                        workQueue.poll(keepAliveTime, TimeUnit.NANOSECONDS) :
+                        workQueue.take();
+            } finally {
+                idleWorkerCount.decrementAndGet();
+                releaseIdleReservation();
+            }
             // r = null的情况,只有在poll()获取任务超时才会发生
-            if (r != null)
+            if (r != null) {
+                // 取出一个任务,工作队列腾出了一个空位,通知等待空位的提交者
+                signalSpaceAvailable();
+                // 截止时间已经过了的任务直接丢弃,继续取下一个,见dropIfExpired()
+                if (dropIfExpired(r)) {
+                    timedOut = false;
+                    continue;
+                }
+                // 批量取任务:顺便把工作队列中的后续任务转移到w的缓冲区,runWorker()会先执行完缓冲区的任务再回到这里
+                // 转移走的每个任务都腾出了一个空位,和purgeCancelled()一样逐个通知等待空位的提交者
+                if (!workStealing) {
+                    for (int k = drainToBuffer(w); k > 0; k--)
+                        signalSpaceAvailable();
+                }
                 return r;
-            // 能执行到这里,说明当前工作线程获取任务超时了,设置timedOut=true,准备销毁
+            }
+            // 能执行到这里,说明当前工作线程获取任务超时了(或者被回收线程选中),设置timedOut=true,准备销毁
             timedOut = true;
         } catch (InterruptedException retry) {
             // 若当前线程获取任务的时候,被打断了,直接进入下一轮的循环,不会响应打断
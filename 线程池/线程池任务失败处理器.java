@@ -0,0 +1,48 @@
+/**
+ * 任务失败处理器
+ * 原来task.run()抛出异常时,runWorker()会把异常继续抛出,completedAbruptly=true,processWorkerExit()销毁这个工作线程,
+ * 再调用addWorker(null,false)新建一个;一直有任务失败的场景下,每分钟要销毁和新建上千个线程:
+ * 线程创建的开销,JIT和TLAB的预热都白费了,还有mainLock的竞争
+ * 设置了任务失败处理器之后,任务抛出的异常交给处理器,同一个工作线程继续执行下一个任务
+ * 注意:
+ * 1. afterExecute(task, thrown)的语义不变,仍然能收到任务抛出的异常,并且在处理器之前调用
+ * 2. Error(例如OutOfMemoryError)仍然会导致工作线程退出,JVM可能已经处于不可信的状态,不适合继续执行任务
+ * 3. 处理器本身抛出异常时,工作线程和原来一样异常退出
+ */
+public interface TaskFailureHandler {
+    /**
+     * 在执行任务的工作线程中调用
+     */
+    void taskFailed(Runnable task, Throwable thrown);
+}
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 任务失败处理器,为null时和原来一样,任务抛出异常会导致工作线程退出
+private volatile TaskFailureHandler taskFailureHandler;
+
+public void setTaskFailureHandler(TaskFailureHandler taskFailureHandler) {
+    this.taskFailureHandler = taskFailureHandler;
+}
+
+public TaskFailureHandler getTaskFailureHandler() {
+    return taskFailureHandler;
+}
+
+/**
+ * 不经过runWorker()的异常(轻量任务,周期定时任务)也先交给任务失败处理器,
+ * 没有设置处理器,或者处理器本身抛出异常时,交给线程的UncaughtExceptionHandler
+ */
+private void reportTaskFailure(Runnable r, Throwable ex) {
+    TaskFailureHandler fh = taskFailureHandler;
+    Thread t = Thread.currentThread();
+    try {
+        if (fh != null) {
+            fh.taskFailed(r, ex);
+            return;
+        }
+    } catch (Throwable handlerEx) {
+        ex = handlerEx;
+    }
+    t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+}
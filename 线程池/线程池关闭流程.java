@@ -7,6 +7,7 @@
  */
 
 public void shutdown() {
+    shutdownTimings.mark(ShutdownTimings.REQUESTED);
     final ReentrantLock mainLock = this.mainLock;
     // 加锁,同时只能有一个线程执行关闭方法
     mainLock.lock();
@@ -17,17 +18,27 @@ public void shutdown() {
         advanceRunState(SHUTDOWN);
         // 打断所有的线程,其实只能打断空闲的工作线程,核心线程将在tryTerminate()中销毁
         interruptIdleWorkers();
+        shutdownTimings.mark(ShutdownTimings.INTERRUPTED);
         // 钩子方法
         onShutdown();
+        // 停止自适应调整线程数的控制器
+        stopAdaptiveSizer();
+        // 时间轮不在这里停止:队列中和正在执行的任务还会执行完,它们的截止时间仍然需要时间轮来执行,
+        // 线程池TERMINATED时在tryTerminate()中停止
+        // 停止集中回收空闲线程的回收线程
+        stopIdleReaper();
     } finally {
         mainLock.unlock();
     }
+    // 唤醒等待工作队列空位的提交者,它们会得到拒绝
+    wakeAllSpaceWaiters();
     // 尝试关闭线程池
     tryTerminate();
 }
 
 public List<Runnable> shutdownNow() {
     List<Runnable> tasks;
+    shutdownTimings.mark(ShutdownTimings.REQUESTED);
     final ReentrantLock mainLock = this.mainLock;
     mainLock.lock();
     try {
@@ -37,11 +48,21 @@ public List<Runnable> shutdownNow() {
         advanceRunState(STOP);
         // 打断所有的线程,这些线程随后将被销毁
         interruptWorkers();
+        shutdownTimings.mark(ShutdownTimings.INTERRUPTED);
         // 移除工作队列中的全部任务
         tasks = drainQueue();
+        shutdownTimings.mark(ShutdownTimings.DRAINED);
+        // 停止自适应调整线程数的控制器
+        stopAdaptiveSizer();
+        // 停止时间轮,还没有到期的定时任务都被取消
+        stopTimerWheel();
+        // 停止集中回收空闲线程的回收线程
+        stopIdleReaper();
     } finally {
         mainLock.unlock();
     }
+    // 唤醒等待工作队列空位的提交者,它们会得到拒绝
+    wakeAllSpaceWaiters();
     // 尝试关闭线程池
     tryTerminate();
     //返回工作队列中被抛弃的任务
@@ -61,7 +82,7 @@ final void tryTerminate() {
             runStateAtLeast(c, TIDYING) ||
             // 当线程池状态为SHUTDOWN而且任务队列不为空,此时,线程池需要将队列中的任务执行完毕,才能关闭;
             // 也是直接返回,不执行后续的关闭线程池代码
-            (runStateOf(c) == SHUTDOWN && ! workQueue.isEmpty()))
+            (runStateOf(c) == SHUTDOWN && ! isQueueEmpty()))
             return;
         
         // 代码能执行到这里,说明当前线程池符合关闭的条件
@@ -75,7 +96,8 @@ final void tryTerminate() {
             // 由于getTask()返回的是null,所以会跳出循环,执行processWorkerExit()方法,又会执行到tryTerminate()方法,
             // 再次选出另一个工作线程打断,直到所有活着的工作线程都被打断了,其实就是一个打断的传播过程;
             // 其实代码能执行到这里,存活的工作线程肯定不多了,这么做,是为了防止关闭线程池引发的混乱
-            interruptIdleWorkers(ONLY_ONE);
+            // 开启bulkTermination时,第一次执行到这里会一次性打断全部空闲线程,不再一个接一个地传播,见interruptIdleWorkersForTermination()
+            interruptIdleWorkersForTermination();
             return;
         }
 
@@ -84,12 +106,16 @@ final void tryTerminate() {
         try {
             // CAS操作将ctl修改为TIDYING+0
             if (ctl.compareAndSet(c, ctlOf(TIDYING, 0))) {
+                shutdownTimings.mark(ShutdownTimings.TIDYING);
                 try {
                     // 空方法
                     terminated();
                 } finally {
                     // CAS操作将ctl修改为TERMINATED+0
                     ctl.set(ctlOf(TERMINATED, 0));
+                    shutdownTimings.mark(ShutdownTimings.TERMINATED);
+                    // shutdown()之后时间轮一直运行到这里,所有任务都已经结束,截止时间不再需要执行
+                    stopTimerWheel();
                     // 唤醒正在条件队列中等待线程池关闭信号的线程,进入同步队列尝试获取mainLock执行
                     // 其实就是唤醒调用了awaitTermination()方法的线程,此方法中调用了termination.awaitNanos(nanos)
                     termination.signalAll();
@@ -0,0 +1,117 @@
+/**
+ * 取消即清理:被取消的FutureTask尽快移出工作队列
+ * 原来cancel()只修改state,然后调用finishCompletion(),被取消的任务还留在workQueue中,直到被工作线程取出,
+ * run()发现state != NEW直接返回;超时风暴时几十万个任务被取消,它们占满有界队列,导致正常的任务被reject()
+ * 一般的BlockingQueue不支持O(1)删除(LinkedBlockingQueue.remove()要遍历),每取消一个任务就remove()一次是O(n^2),所以采用延迟压缩:
+ * 1. 开启之后,FutureTask入队时注册一个取消回调(见FutureTask/onComplete.java),回调只把计数器加1,O(1)
+ * 2. 计数器达到队列长度的1/4(至少MIN_PURGE_BATCH)时,只设置purgeRequested,由下一个进入getTask()的工作线程清理一遍队列,
+ *    cancel()始终是O(1),不会因为正好触发清理而在调用方的线程中遍历队列;清理的开销摊到每次取消上还是O(1)
+ * 3. 入队失败时,如果有被取消的任务还没有清理,先清理一遍再重试一次,不会因为队列被死任务占满而拒绝正常的任务
+ * 轻量任务(见submitLight())没有等待栈,不注册回调,它的cancel()直接计数
+ * 清理时会检查workQueue,工作窃取模式下每个Worker的deque,以及批量取任务的缓冲区
+ * 任务的callable在cancel()的finishCompletion()中就已经置为null了,所以被取消的任务在清理之前只占用队列的位置,不再持有callable引用的对象
+ */
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 是否开启取消即清理
+private volatile boolean purgeOnCancel;
+// 入队之后被取消,还没有清理的任务数;任务在执行中被取消也会计入,只会让清理提前,不影响正确性
+private final AtomicInteger cancelledInQueue = new AtomicInteger();
+// 同一时刻只有一个线程清理
+private final AtomicBoolean purging = new AtomicBoolean();
+// 被取消的任务攒够了一批,等待工作线程清理
+private volatile boolean purgeRequested;
+// 触发清理的最小取消数,避免队列很短时频繁清理
+private static final int MIN_PURGE_BATCH = 64;
+
+public void setPurgeOnCancel(boolean value) {
+    purgeOnCancel = value;
+}
+
+public boolean isPurgeOnCancel() {
+    return purgeOnCancel;
+}
+
+/**
+ * 在offerTask()中入队成功之后调用,给FutureTask注册取消回调;入队失败的任务会被拒绝,不需要注册
+ */
+private void trackCancellation(Runnable command) {
+    if (purgeOnCancel && command instanceof FutureTask)
+        ((FutureTask<?>) command).onComplete(null, null, this::onQueuedTaskCancelled);
+}
+
+/**
+ * 取消回调,在调用cancel()的线程中执行,只计数,不清理
+ */
+private void onQueuedTaskCancelled() {
+    int n = cancelledInQueue.incrementAndGet();
+    if (n >= Math.max(MIN_PURGE_BATCH, workQueue.size() >>> 2) && !purgeRequested)
+        purgeRequested = true;
+}
+
+/**
+ * 清理一遍队列中被取消的任务,返回清理的任务数;已经有线程在清理时直接返回0
+ * 在getTask()中(purgeRequested为true时),offerTask()入队失败时,以及purge()中调用
+ */
+private int purgeCancelled() {
+    if (!purging.compareAndSet(false, true))
+        return 0;
+    purgeRequested = false;
+    int removed = 0;
+    try {
+        // 先清零再遍历,遍历期间被取消的任务计入下一轮
+        cancelledInQueue.set(0);
+        removed += purgeFrom(workQueue);
+        for (Worker w : workers) {
+            int k = purgeFrom(w.deque);
+            if (k > 0) {
+                w.dequeSize.addAndGet(-k);
+                removed += k;
+            }
+            removed += purgeFrom(w.buffer);
+        }
+    } finally {
+        purging.set(false);
+    }
+    // 腾出了空位,通知等待空位的提交者
+    for (int i = 0; i < removed; i++)
+        signalSpaceAvailable();
+    if (removed > 0)
+        tryTerminate(); // In case SHUTDOWN and now empty
+    return removed;
+}
+
+/**
+ * 和原来的purge()一样,迭代器不支持并发修改时,退化为先拷贝再逐个remove()
+ */
+private int purgeFrom(Collection<Runnable> q) {
+    int removed = 0;
+    try {
+        for (Iterator<Runnable> it = q.iterator(); it.hasNext();) {
+            Runnable r = it.next();
+            if (isCancelledTask(r)) {
+                it.remove();
+                removed++;
+            }
+        }
+    } catch (ConcurrentModificationException fallThrough) {
+        for (Object r : q.toArray())
+            if (isCancelledTask((Runnable) r) && q.remove(r))
+                removed++;
+    }
+    return removed;
+}
+
+private static boolean isCancelledTask(Runnable r) {
+    if (r instanceof LightweightTask)
+        return ((LightweightTask) r).isCancelled();
+    return r instanceof Future<?> && ((Future<?>) r).isCancelled();
+}
+
+/**
+ * 原来的purge()只检查workQueue,现在和取消即清理使用同一个流程
+ */
+public void purge() {
+    purgeCancelled();
+}
@@ -0,0 +1,263 @@
+/**
+ * 合并重复请求(single flight)并缓存结果:同一个key同时只有一个任务在执行,并发的调用方共享这个任务的结果
+ * 典型场景是缓存击穿:同一个key的缓存同时失效,大量请求同时去加载,原来每个请求都提交一个FutureTask,同样的计算执行很多次
+ * 现在:
+ * 1. 第一个调用方创建FutureTask并提交给线程池,同一个key后续的调用方直接复用这个任务,每个调用方拿到一个独立的Handle
+ * 2. 任务成功之后结果留在缓存中,按TTL过期,总数超过maxSize时淘汰最早完成的结果;失败和被取消的任务不缓存,下一次调用重新执行
+ * 3. 取消按引用计数:一个调用方取消只影响它自己的Handle,只有所有调用方都取消了,底层的任务才会被取消
+ * 任务完成时通过FutureTask的完成回调(见FutureTask/onComplete.java)更新缓存,不需要额外的线程
+ */
+public class SingleFlightCache<K, V> {
+
+    private final Executor executor;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final ConcurrentHashMap<K, Flight> flights = new ConcurrentHashMap<K, Flight>();
+    // 已经成功完成的结果,按完成的先后顺序排列,用来按数量淘汰
+    private final ConcurrentLinkedQueue<Flight> completed = new ConcurrentLinkedQueue<Flight>();
+    // 还在缓存中的结果数
+    private final AtomicInteger completedCount = new AtomicInteger();
+    // completed中的元素数,包括已经因为过期或者invalidate()被移除,还没有出队的结果
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    // 同时只有一个线程清理completed中已经被移除的结果
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * executor:执行加载任务的线程池
+     * maxSize:最多缓存的结果数
+     * ttl:结果缓存的时长
+     */
+    public SingleFlightCache(Executor executor, int maxSize, long ttl, TimeUnit unit) {
+        if (executor == null)
+            throw new NullPointerException();
+        if (maxSize <= 0 || ttl <= 0)
+            throw new IllegalArgumentException();
+        this.executor = executor;
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * 返回key对应的结果;没有缓存,也没有正在执行的任务时,用loader创建一个任务提交给线程池
+     * 线程池拒绝时抛出RejectedExecutionException,和直接提交一样
+     */
+    public Future<V> get(K key, Callable<V> loader) {
+        if (key == null || loader == null)
+            throw new NullPointerException();
+        for (;;) {
+            Flight f = flights.get(key);
+            if (f != null && f.isExpired(System.nanoTime())) {
+                unpublish(f);
+                f = null;
+            }
+            if (f == null) {
+                Flight n = new Flight(key, loader);
+                if ((f = flights.putIfAbsent(key, n)) == null) {
+                    n.start();
+                    return new Handle(n);
+                }
+            }
+            if (f.retain())
+                return new Handle(f);
+            // 所有调用方都已经取消,任务已经被取消了,帮忙移除,然后重新创建
+            flights.remove(key, f);
+        }
+    }
+
+    /**
+     * 移除key对应的缓存结果,正在执行的任务不受影响
+     */
+    public void invalidate(K key) {
+        Flight f = flights.get(key);
+        if (f != null && f.task.isDone())
+            unpublish(f);
+    }
+
+    /**
+     * 从map中移除一个结果,已经计入completedCount的同时减1,按数量淘汰时只统计还在缓存中的结果
+     */
+    private void unpublish(Flight f) {
+        if (flights.remove(f.key, f) && f.uncount())
+            sweep();
+    }
+
+    /**
+     * 当前缓存的结果和正在执行的任务的总数
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    /**
+     * 按数量淘汰:超过maxSize时,淘汰最早完成的结果
+     * 已经因为过期或者invalidate()被移除的结果还留在completed中,它们在移除时已经从completedCount中减掉了,这里出队时跳过
+     */
+    private void evict() {
+        while (completedCount.get() > maxSize) {
+            Flight f = completed.poll();
+            if (f == null)
+                break;
+            f.dequeue();
+            if (f.uncount())
+                flights.remove(f.key, f);
+        }
+        sweep();
+    }
+
+    /**
+     * 清理completed中已经被移除的结果
+     * 它们不一定在队头,每次过期之后都重新加载同一批key时,completedCount一直达不到maxSize,evict()不会出队,
+     * 不清理的话completed会无限增长,每个结果都留着它的FutureTask;
+     * 已经被移除的结果超过还在缓存中的结果数时才整体清理一遍,摊到每次移除上是O(1)
+     */
+    private void sweep() {
+        int live = completedCount.get();
+        if (queuedCount.get() - live <= Math.max(live, 16) || !sweeping.compareAndSet(false, true))
+            return;
+        try {
+            completed.removeIf(f -> !f.counted.get() && f.dequeue());
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * 一个key的一次执行
+     * refs:还没有取消的调用方数量;-1表示所有调用方都取消了,任务已经被取消,不能再被复用
+     */
+    final class Flight {
+        final K key;
+        final FutureTask<V> task;
+        // 创建者自己算一个调用方,放入map之前就计好,放入之后其他调用方马上可能retain()
+        final AtomicInteger refs = new AtomicInteger(1);
+        // 成功完成的时间,0表示还没有完成
+        volatile long completedAt;
+        // 是否计入了completedCount,从缓存中移除时只减一次
+        final AtomicBoolean counted = new AtomicBoolean();
+        // 是否还在completed中,出队和清理只有一个能把queuedCount减1
+        final AtomicBoolean queued = new AtomicBoolean();
+
+        Flight(K key, Callable<V> loader) {
+            this.key = key;
+            this.task = new FutureTask<V>(loader);
+        }
+
+        void start() {
+            task.onComplete(v -> onSuccess(), x -> flights.remove(key, this), () -> flights.remove(key, this));
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                // 放入map之后,其他调用方可能已经retain()并拿到了Handle,先让任务以异常完成,它们的get()不会永远阻塞,
+                // 然后再从map中移除;完成时的失败回调也会移除,这里再移除一次是为了不依赖回调
+                refs.set(-1);
+                task.setException(ex);
+                flights.remove(key, this);
+                throw ex;
+            }
+        }
+
+        void onSuccess() {
+            long now = System.nanoTime();
+            // 0表示还没有完成,刚好是0的时间戳往后挪1纳秒
+            completedAt = (now == 0L) ? 1L : now;
+            counted.set(true);
+            completedCount.incrementAndGet();
+            queued.set(true);
+            queuedCount.incrementAndGet();
+            completed.offer(this);
+            // 计数之前已经被invalidate()移除了,把计数撤回
+            if (flights.get(key) != this)
+                uncount();
+            evict();
+        }
+
+        /**
+         * 离开completed时把queuedCount减1,evict()出队和sweep()清理同时遇到同一个结果时,只有第一次调用返回true
+         */
+        boolean dequeue() {
+            if (!queued.compareAndSet(true, false))
+                return false;
+            queuedCount.decrementAndGet();
+            return true;
+        }
+
+        /**
+         * 撤回completedCount中的计数,只有第一次调用返回true
+         */
+        boolean uncount() {
+            if (!counted.compareAndSet(true, false))
+                return false;
+            completedCount.decrementAndGet();
+            return true;
+        }
+
+        boolean isExpired(long now) {
+            long t = completedAt;
+            return t != 0L && now - t >= ttlNanos;
+        }
+
+        /**
+         * 增加一个调用方;已经成功完成的任务不再计数,因为它不会再被取消
+         */
+        boolean retain() {
+            if (completedAt != 0L)
+                return true;
+            for (int n; (n = refs.get()) >= 0;) {
+                if (refs.compareAndSet(n, n + 1))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * 一个调用方取消:最后一个调用方取消时,取消底层的任务
+         * 从1减到0和从0改成-1之间,可能有新的调用方retain()成功,此时CAS失败,任务继续执行
+         */
+        void release(boolean mayInterruptIfRunning) {
+            if (refs.decrementAndGet() == 0 && !task.isDone() && refs.compareAndSet(0, -1)) {
+                task.cancel(mayInterruptIfRunning);
+                flights.remove(key, this);
+            }
+        }
+    }
+
+    /**
+     * 每个调用方独立的Future,取消只影响自己
+     */
+    final class Handle implements Future<V> {
+        final Flight flight;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+
+        Handle(Flight flight) {
+            this.flight = flight;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (flight.task.isDone() || !cancelled.compareAndSet(false, true))
+                return false;
+            flight.release(mayInterruptIfRunning);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get() || flight.task.isCancelled();
+        }
+
+        public boolean isDone() {
+            return cancelled.get() || flight.task.isDone();
+        }
+
+        public V get() throws InterruptedException, ExecutionException {
+            if (cancelled.get())
+                throw new CancellationException();
+            return flight.task.get();
+        }
+
+        public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            if (cancelled.get())
+                throw new CancellationException();
+            return flight.task.get(timeout, unit);
+        }
+    }
+}
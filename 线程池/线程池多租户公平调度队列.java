@@ -0,0 +1,371 @@
+/**
+ * 多租户公平调度的工作队列,可以直接作为线程池的workQueue
+ * 所有租户共用一个FIFO的workQueue时,一个租户大量提交任务,其他租户的任务都要排在它的积压任务后面
+ * 这个队列:
+ * 1. 租户之间按权重公平调度(加权公平队列,开始时间公平排队SFQ):每个租户有一个虚拟时间标签,出队时总是选择标签最小的租户,
+ *    租户每出队一个任务,标签增加1/权重;所以权重为2的租户出队的任务数是权重为1的租户的两倍,而不管谁积压得多
+ * 2. 同一个租户内部按优先级出队,优先级相同的按提交顺序出队
+ * 3. 入队和出队都是O(log n):租户之间是一个按标签排序的小顶堆,租户内部是一个按优先级排序的堆
+ * 实现了BlockingQueue的全部语义:getTask()中的poll(keepAliveTime)/take()能正常阻塞和超时,
+ * shutdownNow()中的drainQueue()通过drainTo()取出全部任务,execute()再次检查时的remove()也能正常移除任务
+ * 任务实现TenantTask接口来指定租户和优先级,没有实现的任务属于默认租户,优先级为0
+ */
+public class FairSchedulingQueue extends AbstractQueue<Runnable>
+        implements BlockingQueue<Runnable> {
+
+    /**
+     * 带租户和优先级的任务
+     */
+    public interface TenantTask extends Runnable {
+        // 租户的key,例如租户id;需要正确实现equals()和hashCode()
+        Object tenantKey();
+
+        // 优先级,越大越先执行
+        default int priority() {
+            return 0;
+        }
+    }
+
+    // 没有实现TenantTask接口的任务所属的租户
+    private static final Object DEFAULT_TENANT = new Object();
+
+    /**
+     * 队列中的一个任务,seq是全局的入队序号,保证同一个租户内优先级相同时先进先出
+     */
+    static final class Entry {
+        final Runnable task;
+        final int priority;
+        final long seq;
+
+        Entry(Runnable task, int priority, long seq) {
+            this.task = task;
+            this.priority = priority;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * 租户的调度状态,只有队列中还有这个租户的任务时才存在
+     */
+    static final class Tenant {
+        final Object key;
+        final double cost;
+        // 虚拟开始时间标签,标签越小越先被调度
+        double tag;
+        // 入堆的序号,标签相同时先入堆的先调度
+        long order;
+        final PriorityQueue<Entry> tasks = new PriorityQueue<Entry>(
+            (a, b) -> a.priority != b.priority ?
+                Integer.compare(b.priority, a.priority) :
+                Long.compare(a.seq, b.seq));
+
+        Tenant(Object key, int weight) {
+            this.key = key;
+            this.cost = 1.0 / weight;
+        }
+    }
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // 以下字段只在持有lock时访问
+    // 有任务的租户,按标签排序
+    private final PriorityQueue<Tenant> ready = new PriorityQueue<Tenant>(
+        (a, b) -> a.tag != b.tag ? Double.compare(a.tag, b.tag) : Long.compare(a.order, b.order));
+    private final HashMap<Object, Tenant> tenants = new HashMap<Object, Tenant>();
+    // 系统的虚拟时间,等于最近一次出队的租户的标签
+    private double virtualTime;
+    private long seq;
+    private long order;
+    private int count;
+
+    // 租户的权重,默认为1;租户的任务全部出队之后调度状态会被移除,但是权重一直保留
+    private final ConcurrentHashMap<Object, Integer> weights = new ConcurrentHashMap<Object, Integer>();
+
+    public FairSchedulingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public FairSchedulingQueue(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+    }
+
+    /**
+     * 设置租户的权重,对之后入队的租户生效
+     */
+    public void setWeight(Object tenantKey, int weight) {
+        if (tenantKey == null)
+            throw new NullPointerException();
+        if (weight <= 0)
+            throw new IllegalArgumentException();
+        weights.put(tenantKey, weight);
+    }
+
+    // ---------------------------- 入队和出队,调用方必须持有lock ----------------------------
+
+    private void enqueue(Runnable r) {
+        Object key;
+        int priority;
+        if (r instanceof TenantTask) {
+            TenantTask t = (TenantTask) r;
+            key = t.tenantKey();
+            priority = t.priority();
+            if (key == null)
+                key = DEFAULT_TENANT;
+        } else {
+            key = DEFAULT_TENANT;
+            priority = 0;
+        }
+        Tenant t = tenants.get(key);
+        if (t == null) {
+            // 租户变成活跃状态,标签从当前的虚拟时间开始,不能因为之前空闲了很久就攒下大量的配额
+            Integer w = weights.get(key);
+            t = new Tenant(key, (w == null) ? 1 : w);
+            t.tag = virtualTime;
+            t.order = order++;
+            tenants.put(key, t);
+            ready.add(t);
+        }
+        t.tasks.add(new Entry(r, priority, seq++));
+        count++;
+        notEmpty.signal();
+    }
+
+    private Runnable dequeue() {
+        // 取出标签最小的租户,执行它优先级最高的任务
+        Tenant t = ready.poll();
+        Entry e = t.tasks.poll();
+        virtualTime = t.tag;
+        if (t.tasks.isEmpty())
+            tenants.remove(t.key);
+        else {
+            // 标签增加1/权重,重新入堆
+            t.tag += t.cost;
+            t.order = order++;
+            ready.add(t);
+        }
+        count--;
+        notFull.signal();
+        return e.task;
+    }
+
+    // ---------------------------- BlockingQueue ----------------------------
+
+    public boolean offer(Runnable r) {
+        if (r == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (count == capacity)
+                return false;
+            enqueue(r);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) throws InterruptedException {
+        if (r == null)
+            throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                if (nanos <= 0L)
+                    return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(r);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(Runnable r) throws InterruptedException {
+        if (r == null)
+            throw new NullPointerException();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity)
+                notFull.await();
+            enqueue(r);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable poll() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return (count == 0) ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * getTask()中timed=true时调用,超时返回null
+     */
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0L)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * getTask()中timed=false时调用,阻塞到有任务为止,能响应打断
+     */
+    public Runnable take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (count == 0)
+                notEmpty.await();
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable peek() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (count == 0)
+                return null;
+            return ready.peek().tasks.peek().task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * execute()再次检查时移除刚入队的任务,需要在所属租户的堆中查找,O(n)
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (Tenant t : tenants.values()) {
+                for (Iterator<Entry> it = t.tasks.iterator(); it.hasNext();) {
+                    if (o.equals(it.next().task)) {
+                        it.remove();
+                        if (t.tasks.isEmpty()) {
+                            ready.remove(t);
+                            tenants.remove(t.key);
+                        }
+                        count--;
+                        notFull.signal();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * shutdownNow()中的drainQueue()和批量取任务时调用,按调度顺序取出任务
+     */
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 返回当前任务的快照,不反映之后的修改,和调度顺序无关
+     */
+    public Iterator<Runnable> iterator() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            ArrayList<Runnable> snapshot = new ArrayList<Runnable>(count);
+            for (Tenant t : tenants.values())
+                for (Entry e : t.tasks)
+                    snapshot.add(e.task);
+            final Iterator<Runnable> it = snapshot.iterator();
+            return new Iterator<Runnable>() {
+                Runnable last;
+
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public Runnable next() {
+                    return last = it.next();
+                }
+
+                public void remove() {
+                    if (last == null)
+                        throw new IllegalStateException();
+                    FairSchedulingQueue.this.remove(last);
+                    last = null;
+                }
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * 工作窃取模式:每个Worker持有一个本地双端队列(deque),代替所有工作线程共同争抢一个workQueue
+ * 1. 工作线程内部提交的任务,放入自己的deque队头,自己也从队头取任务(LIFO,缓存更热)
+ * 2. 外部线程提交的任务,按轮询的方式分散到各个Worker的deque中
+ * 3. 工作线程在自己的deque为空时,先从其他Worker的deque队尾窃取任务(FIFO),窃取不到才停车等待
+ * 注意:workQueue依然保留,作为deque的兜底(本地deque满了,或者还没有任何Worker时),所以ctl的生命周期管理和原来完全一样
+ */
+
+// ---------------------------- Worker类中新增的字段 ----------------------------
+
+// 工作线程本地的双端队列,所属工作线程从队头存取,其他工作线程从队尾窃取
+final ConcurrentLinkedDeque<Runnable> deque = new ConcurrentLinkedDeque<Runnable>();
+// deque中的任务数量,ConcurrentLinkedDeque的size()需要遍历,所以单独计数,用来限制deque的容量
+final AtomicInteger dequeSize = new AtomicInteger();
+// 工作线程是否已经退出,退出后deque不再接收新任务
+volatile boolean retired;
+// 在空闲栈idleWorkers中的状态:NOT_IDLE,IDLE_WAITING,IDLE_STALE
+final AtomicInteger idleState = new AtomicInteger();
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 是否开启工作窃取模式,构造时确定,之后不能修改
+private final boolean workStealing;
+// 每个Worker本地deque的容量,超过容量的任务进入workQueue
+private final int localQueueCapacity;
+// 所有Worker的快照数组,写时复制,只在持有stealTableLock时更新;窃取和分发任务时无锁读取
+private volatile Worker[] stealTable = new Worker[0];
+// 重建stealTable时使用的锁,只有工作窃取模式下,工作线程创建和退出时才会用到
+private final Object stealTableLock = new Object();
+// 外部线程提交任务时,轮询选择deque的序号
+private final AtomicInteger submitSeq = new AtomicInteger();
+// 在工作窃取模式(以及集中回收空闲线程模式)下停车等待任务的空闲工作线程,队头是最近空闲的线程,队尾是空闲最久的线程
+private final ConcurrentLinkedDeque<Worker> idleWorkers = new ConcurrentLinkedDeque<Worker>();
+// 当前线程对应的Worker,只有本线程池的工作线程才有值,用来判断任务是不是工作线程内部提交的
+private final ThreadLocal<Worker> localWorker = new ThreadLocal<Worker>();
+
+// Worker.idleState的取值
+// NOT_IDLE:不在空闲栈中
+// IDLE_WAITING:在空闲栈中,正在等待被唤醒
+// IDLE_STALE:还留在空闲栈中,但是工作线程已经自己醒来(超时,被打断,或者停车之前找到了任务),这个节点已经作废
+static final int NOT_IDLE     = 0;
+static final int IDLE_WAITING = 1;
+static final int IDLE_STALE   = 2;
+
+/**
+ * 开启工作窃取模式的构造方法,localQueueCapacity是每个Worker本地deque的容量,必须大于0
+ */
+public ThreadPoolExecutor(int corePoolSize,
+                          int maximumPoolSize,
+                          long keepAliveTime,
+                          TimeUnit unit,
+                          BlockingQueue<Runnable> workQueue,
+                          ThreadFactory threadFactory,
+                          RejectedExecutionHandler handler,
+                          int localQueueCapacity) {
+    this(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler,
+         true, localQueueCapacity, false);
+}
+
+/**
+ * 所有构造方法最终都调用这个构造方法,原来7个参数的构造方法改为this(..., handler, false, 0, false)
+ */
+private ThreadPoolExecutor(int corePoolSize,
+                           int maximumPoolSize,
+                           long keepAliveTime,
+                           TimeUnit unit,
+                           BlockingQueue<Runnable> workQueue,
+                           ThreadFactory threadFactory,
+                           RejectedExecutionHandler handler,
+                           boolean workStealing,
+                           int localQueueCapacity,
+                           boolean virtualWorkers) {
+    // 和原来的构造方法一样的参数检查
+    if (corePoolSize < 0 ||
+        maximumPoolSize <= 0 ||
+        maximumPoolSize < corePoolSize ||
+        keepAliveTime < 0)
+        throw new IllegalArgumentException();
+    // 工作窃取模式下deque的容量必须大于0,否则所有任务都会退回到workQueue
+    if (workStealing && localQueueCapacity <= 0)
+        throw new IllegalArgumentException();
+    if (workQueue == null || threadFactory == null || handler == null)
+        throw new NullPointerException();
+    this.corePoolSize = corePoolSize;
+    this.maximumPoolSize = maximumPoolSize;
+    this.workQueue = workQueue;
+    this.keepAliveTime = unit.toNanos(keepAliveTime);
+    this.threadFactory = threadFactory;
+    this.handler = handler;
+    this.workStealing = workStealing;
+    this.localQueueCapacity = localQueueCapacity;
+    this.virtualWorkers = virtualWorkers;
+    // 虚拟线程模式下,maximumPoolSize就是初始的最大并发数,之后通过setMaxConcurrency()调整
+    this.maxConcurrency = virtualWorkers ? maximumPoolSize : 0;
+}
+
+/**
+ * 工作窃取模式下的任务入队,代替execute()中的workQueue.offer()
+ */
+private boolean offerStealing(Runnable command) {
+    Worker w = localWorker.get();
+    // 情况1:工作线程内部提交的任务,放入自己deque的队头
+    // 情况2:外部线程提交的任务,轮询选择一个Worker的deque,放入队尾
+    if (w == null) {
+        Worker[] ws = stealTable;
+        int n = ws.length;
+        if (n > 0)
+            w = ws[(submitSeq.getAndIncrement() & Integer.MAX_VALUE) % n];
+    }
+    boolean offered;
+    if (w != null && pushLocal(w, command, w == localWorker.get()))
+        offered = true;
+    else
+        // 还没有任何Worker或者deque满了,退回到workQueue
+        offered = workQueue.offer(command);
+    if (offered)
+        // 任务入队之后再唤醒空闲线程,和awaitStealableTask()中"先登记空闲,再检查队列"的顺序配合,不会丢失唤醒
+        signalIdleWorker();
+    return offered;
+}
+
+private boolean pushLocal(Worker w, Runnable command, boolean owner) {
+    // 先占用容量,超过容量则回退
+    if (w.dequeSize.incrementAndGet() > localQueueCapacity) {
+        w.dequeSize.decrementAndGet();
+        return false;
+    }
+    if (owner)
+        w.deque.offerFirst(command);
+    else
+        w.deque.offerLast(command);
+    // 提交线程可能拿到的是旧的stealTable,而w已经退出了;和handOffLocalTasks()中"先设置retired,再转交任务"的顺序配合:
+    // 要么转交的时候能看到这个任务,要么这里能看到retired=true,自己把任务撤回来;撤回失败说明任务已经被转交了
+    if (w.retired && w.deque.removeLastOccurrence(command)) {
+        w.dequeSize.decrementAndGet();
+        return false;
+    }
+    return true;
+}
+
+private Runnable pollLocal(Worker w) {
+    Runnable r = w.deque.pollFirst();
+    if (r != null)
+        w.dequeSize.decrementAndGet();
+    return r;
+}
+
+/**
+ * 从其他Worker的deque队尾窃取一个任务,从随机位置开始扫描,避免所有空闲线程都去窃取同一个Worker
+ */
+private Runnable trySteal(Worker self) {
+    Worker[] ws = stealTable;
+    int n = ws.length;
+    if (n == 0)
+        return null;
+    int start = ThreadLocalRandom.current().nextInt(n);
+    for (int i = 0; i < n; i++) {
+        Worker v = ws[(start + i) % n];
+        if (v == self)
+            continue;
+        Runnable r = v.deque.pollLast();
+        if (r != null) {
+            v.dequeSize.decrementAndGet();
+            return r;
+        }
+    }
+    return null;
+}
+
+/**
+ * 按 本地deque -> 窃取 -> workQueue 的顺序非阻塞地找一个任务
+ */
+private Runnable findTask(Worker w) {
+    Runnable r;
+    if ((r = pollLocal(w)) != null ||
+        (r = trySteal(w)) != null ||
+        (r = workQueue.poll()) != null)
+        return r;
+    return null;
+}
+
+/**
+ * 工作窃取模式和集中回收空闲线程模式下,代替getTask()中的workQueue.poll(keepAliveTime)/workQueue.take()
+ * 返回null表示等待超时或者被回收线程选中,和poll()的语义一样;被打断时抛出InterruptedException,和take()/poll()的语义一样
+ * 非工作窃取模式下deque和stealTable都是空的,findTask()等价于workQueue.poll()
+ */
+private Runnable awaitStealableTask(Worker w, boolean timed, long nanos)
+    throws InterruptedException {
+    final long deadline = timed ? System.nanoTime() + nanos : 0L;
+    // 上一次空闲时被回收线程选中,但是在被唤醒之前先取到了任务,这个标记已经过时了
+    w.reaped = false;
+    w.idleSince = System.nanoTime();
+    for (;;) {
+        Runnable r = findTask(w);
+        if (r != null)
+            return r;
+        // 先登记为空闲线程,再检查一次队列,之后才停车
+        // 提交任务的线程是先入队再唤醒,所以两边总有一方能看到对方,不会出现任务入队了但是没有线程被唤醒的情况
+        pushIdle(w);
+        if ((r = findTask(w)) != null) {
+            // 撤销登记失败说明已经被signalIdleWorker()选中,消耗了一次唤醒,把唤醒转交给下一个空闲线程
+            if (!withdrawIdle(w))
+                signalIdleWorker();
+            return r;
+        }
+        if (timed) {
+            nanos = deadline - System.nanoTime();
+            if (nanos <= 0L) {
+                if (withdrawIdle(w))
+                    return null;
+                // 超时的同时被选中,不能返回null,回到循环的开头取任务
+                continue;
+            }
+            LockSupport.parkNanos(this, nanos);
+        } else
+            LockSupport.park(this);
+        // 被唤醒的原因可能是signalIdleWorker()(已经把w移出了空闲栈),也可能是超时或者被打断
+        // 后者只把节点标记为作废,不从空闲栈中移除(ConcurrentLinkedDeque.remove()需要遍历),由唤醒方出栈时跳过
+        withdrawIdle(w);
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        // 被回收线程选中,按超时处理
+        if (w.reaped)
+            return null;
+    }
+}
+
+/**
+ * 登记为空闲线程;节点还留在空闲栈中(上一次登记之后自己醒来,已经作废)时直接复用,不重复入栈,所以空闲栈的长度不会超过工作线程数
+ */
+private void pushIdle(Worker w) {
+    for (;;) {
+        if (w.idleState.compareAndSet(IDLE_STALE, IDLE_WAITING))
+            return;
+        if (w.idleState.compareAndSet(NOT_IDLE, IDLE_WAITING)) {
+            idleWorkers.offerFirst(w);
+            return;
+        }
+    }
+}
+
+/**
+ * 工作线程自己撤销登记,返回false表示已经被signalIdleWorker()或者回收线程选中
+ */
+private static boolean withdrawIdle(Worker w) {
+    return w.idleState.compareAndSet(IDLE_WAITING, IDLE_STALE);
+}
+
+/**
+ * 唤醒方认领一个已经出栈的节点,返回true表示这个工作线程正在等待,由调用方唤醒;作废的节点返回false,直接丢弃
+ */
+private static boolean claimIdle(Worker w) {
+    return w.idleState.getAndSet(NOT_IDLE) == IDLE_WAITING;
+}
+
+/**
+ * 唤醒一个空闲线程,最近空闲的线程优先(栈顶),它的缓存更热
+ */
+private void signalIdleWorker() {
+    for (Worker w; (w = idleWorkers.pollFirst()) != null;) {
+        if (claimIdle(w)) {
+            LockSupport.unpark(w.thread);
+            return;
+        }
+    }
+}
+
+/**
+ * 工作队列是否为空,工作窃取模式下还需要检查所有Worker的deque
+ * getTask(),tryTerminate(),addWorker()和processWorkerExit()中原来的workQueue.isEmpty()都换成了这个方法
+ */
+private boolean isQueueEmpty() {
+    if (!workQueue.isEmpty())
+        return false;
+    if (workStealing) {
+        for (Worker w : stealTable)
+            if (!w.deque.isEmpty())
+                return false;
+    }
+    return true;
+}
+
+/**
+ * 重建stealTable快照,每次workers增加或者移除工作者之后调用
+ * 加锁是为了让快照按顺序发布:最后一个拿到锁的线程一定能看到之前所有的增加和移除,不会被更旧的快照覆盖
+ */
+private void refreshStealTable() {
+    synchronized (stealTableLock) {
+        stealTable = workers.toArray(new Worker[0]);
+    }
+}
+
+/**
+ * 工作线程退出时,把它deque中剩余的任务转交出去,调用前w已经从workers和stealTable中移除
+ * 在processWorkerExit()中持有mainLock时调用,转交失败的任务放入rejected,由调用方释放锁之后调用拒绝策略
+ */
+private void handOffLocalTasks(Worker w, List<Runnable> rejected) {
+    w.retired = true;
+    // STOP状态下shutdownNow()已经调用过drainQueue(),剩下的只可能是和shutdownNow()并发提交的任务,
+    // 放回workQueue就再也没有线程执行了,和execute()再次检查时一样调用拒绝策略
+    boolean stopped = runStateAtLeast(ctl.get(), STOP);
+    for (Runnable r; (r = pollLocal(w)) != null;) {
+        if (stopped) {
+            rejected.add(r);
+            continue;
+        }
+        // 优先放回workQueue,workQueue满了再分给其他的Worker,都失败的话只能调用拒绝策略
+        // 转交成功之后和enqueue()一样唤醒一个空闲线程:空闲线程在空闲栈上无限期停车,被唤醒的线程可能在转交之前就已经扫描过了,
+        // 不唤醒的话这个任务要等到下一次提交才有线程执行
+        if (workQueue.offer(r)) {
+            signalIdleWorker();
+            continue;
+        }
+        Worker[] ws = stealTable;
+        Worker v = ws.length == 0 ? null : ws[(submitSeq.getAndIncrement() & Integer.MAX_VALUE) % ws.length];
+        if (v != null && pushLocal(v, r, false))
+            signalIdleWorker();
+        else
+            rejected.add(r);
+    }
+}
+
+/**
+ * shutdownNow()中移除全部任务,工作窃取模式下还需要清空所有Worker的deque,批量取任务模式下还需要清空所有Worker的缓冲区
+ * workers是并发集合,可以直接遍历
+ */
+private List<Runnable> drainQueue() {
+    BlockingQueue<Runnable> q = workQueue;
+    ArrayList<Runnable> taskList = new ArrayList<Runnable>();
+    q.drainTo(taskList);
+    if (!q.isEmpty()) {
+        for (Runnable r : q.toArray(new Runnable[0])) {
+            if (q.remove(r))
+                taskList.add(r);
+        }
+    }
+    if (workStealing) {
+        for (Worker w : stealTable) {
+            for (Runnable r; (r = pollLocal(w)) != null;)
+                taskList.add(r);
+        }
+    }
+    for (Worker w : workers) {
+        for (Runnable r; (r = w.buffer.poll()) != null;)
+            taskList.add(r);
+    }
+    return taskList;
+}
+
+/**
+ * execute()再次检查时,从队列中移除刚入队的任务,工作窃取模式下任务可能在任意一个deque中
+ */
+public boolean remove(Runnable task) {
+    boolean removed = workQueue.remove(task);
+    if (!removed && workStealing) {
+        for (Worker w : stealTable) {
+            if (w.deque.remove(task)) {
+                w.dequeSize.decrementAndGet();
+                removed = true;
+                break;
+            }
+        }
+    }
+    tryTerminate(); // In case SHUTDOWN and now empty
+    return removed;
+}
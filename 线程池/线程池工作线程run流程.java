@@ -9,12 +9,17 @@ final void runWorker(Worker w) {
     w.firstTask = null;
     // 此时工作线程可以被打断
     w.unlock(); // allow interrupts
+    // 工作窃取模式下,记录当前线程对应的Worker,此线程内部提交的任务会放入自己的deque
+    if (workStealing)
+        localWorker.set(w);
     boolean completedAbruptly = true;
     try {
         // 第一次循环,task肯定不为null,不会从工作队列中取任务
-        // 后面的循环,task=null,会通过getTask()从工作队列中取任务
+        // 后面的循环,task=null,先从缓冲区取任务(批量取任务模式),缓冲区为空才会通过getTask()从工作队列中取任务
         // 注意,工作队列当前若没有任务,则getTask()会阻塞
-        while (task != null || (task = getTask()) != null) {
+        while (task != null ||
+               (task = pollBuffered(w)) != null ||
+               (task = getTask(w)) != null) {
             // 加锁,防止任务在执行的时候,被其他线程中断
             w.lock();
             // 当线程池状态>=STOP且线程中断标志位为false时,将线程中断标志位设置为true(保证线程池不在RUNNING状态时，线程的中断标志位为true)
@@ -23,23 +28,58 @@ final void runWorker(Worker w) {
                   runStateAtLeast(ctl.get(), STOP))) &&
                 !wt.isInterrupted())    // isInterrupted()不会擦除中断标志
                 wt.interrupt();     // 设置中断标志位设置为true
+            // 运行指标:开启时,任务入队之前记录了入队时间,这里记录排队时间
+            // 不管有没有开启都要取出一次,清除任务字段中的入队时间;没有经过队列的任务(firstTask)没有记录
+            PoolMetrics m = metrics;
+            // JFR:只有正在录制TaskExecution事件时才创建事件对象
+            TaskExecutionEvent ev = TaskExecutionEvent.TYPE.isEnabled() ? new TaskExecutionEvent() : null;
+            long startNanos = (m != null || ev != null) ? System.nanoTime() : 0L;
+            long queueWait = -1L;
+            long enqueuedAt = takeEnqueueTime(task);
+            if (enqueuedAt != 0L && startNanos != 0L) {
+                queueWait = startNanos - enqueuedAt;
+                if (m != null)
+                    m.queueWait.record(queueWait);
+            }
+            // 设置了任务失败处理器时,任务抛出的异常(Error除外)交给处理器,工作线程继续执行下一个任务,不会退出再新建
+            // 每个任务只读取一次,防止执行过程中处理器被修改
+            TaskFailureHandler fh = taskFailureHandler;
             try {
                 // 扩展点,在任务执行之前
                 beforeExecute(wt, task);
                 Throwable thrown = null;
+                if (ev != null)
+                    ev.begin();
                 try {
                     // 执行任务
                     task.run();
                 } catch (RuntimeException x) {
-                    thrown = x; throw x;
+                    thrown = x; if (fh == null) throw x;
                 } catch (Error x) {
                     thrown = x; throw x;
                 } catch (Throwable x) {
-                    thrown = x; throw new Error(x);
+                    thrown = x; if (fh == null) throw new Error(x);
                 } finally {
-                    // 扩展点,在任务执行之后
+                    // 运行指标:记录执行时间
+                    if (m != null)
+                        m.runTime.record(System.nanoTime() - startNanos);
+                    // JFR:执行耗时超过阈值才写入
+                    if (ev != null) {
+                        ev.end();
+                        if (ev.shouldCommit()) {
+                            ev.taskClass = task.getClass();
+                            ev.queueWait = queueWait;
+                            ev.failed = thrown != null;
+                            ev.commit();
+                        }
+                    }
+                    // 扩展点,在任务执行之后,不论是否设置了任务失败处理器,thrown都是任务抛出的异常
                     afterExecute(task, thrown);
                 }
+                // 能执行到这里且thrown不为null,说明设置了任务失败处理器,异常没有继续抛出
+                // 处理器本身抛出异常时,工作线程和原来一样异常退出
+                if (thrown != null)
+                    fh.taskFailed(task, thrown);
             } finally {
                 // 每次任务执行完之后,都置为null,让下次循环从工作队列中获取任务
                 task = null;
@@ -50,6 +90,8 @@ final void runWorker(Worker w) {
         }
         completedAbruptly = false;
     } finally {
+        if (workStealing)
+            localWorker.remove();
         // 能执行到这里,表示此工作线程即将结束
         processWorkerExit(w, completedAbruptly);
     }
@@ -66,15 +108,49 @@ private void processWorkerExit(Worker w, boolean completedAbruptly) {
         // 将工作线程数减1
         decrementWorkerCount();
 
-    final ReentrantLock mainLock = this.mainLock;
-    mainLock.lock();
-    try {
-        // 统计全部任务的完成数量
-        completedTaskCount += w.completedTasks;
-        // 从工作者集合中移除结束工作的工作者
+    // 运行指标:统计退出的工作线程数
+    PoolMetrics m = metrics;
+    if (m != null)
+        m.workersRetired.increment();
+    if (WorkerExitEvent.TYPE.isEnabled()) {
+        WorkerExitEvent e = new WorkerExitEvent();
+        e.completedAbruptly = completedAbruptly;
+        e.completedTasks = w.completedTasks;
+        e.poolSize = workerCountOf(ctl.get());
+        e.commit();
+    }
+
+    // 从工作者集合中移除结束工作的工作者,workers是并发集合,w手上没有任务时不需要加mainLock
+    // 工作窃取模式下w的deque中,以及批量取任务模式下w的缓冲区中可能还有任务,这时移除和转交必须在mainLock中一起完成:
+    // shutdownNow()在mainLock中把状态改为STOP并调用drainQueue(),所以要么w还在workers中,drainQueue()能取到这些任务,
+    // 要么w在drainQueue()之前就已经把任务转交到了workQueue,不会有任务从shutdownNow()的返回值中消失
+    List<Runnable> leftovers = null;
+    if (workStealing || !w.buffer.isEmpty()) {
+        leftovers = new ArrayList<Runnable>();
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            workers.remove(w);
+            // 工作窃取模式下,重建Worker快照数组,w不再接收新任务
+            if (workStealing)
+                refreshStealTable();
+            // 只有异常退出或者STOP状态下,deque和缓冲区才可能不为空(正常退出时getTask()已经确认过队列为空)
+            if (workStealing)
+                handOffLocalTasks(w, leftovers);
+            requeueBuffered(w, leftovers);
+        } finally {
+            mainLock.unlock();
+        }
+    } else
         workers.remove(w);
-    } finally {
-        mainLock.unlock();
+    // 统计全部任务的完成数量,completedTaskCount是LongAdder,大量线程同时退出时,累加操作分散在不同的cell上
+    // 必须在从workers中移除之后再累加:getCompletedTaskCount()不加锁,先累加的话可能把w的任务数统计两次,
+    // 现在最多少统计一次,和"近似值"的说明一致
+    completedTaskCount.add(w.completedTasks);
+    // 转交失败的任务调用拒绝策略,拒绝策略可能会执行任务(CallerRunsPolicy),所以在锁外调用
+    if (leftovers != null) {
+        for (Runnable r : leftovers)
+            reject(r);
     }
 
     // 每一次工作线程退出,都会尝试关闭线程池
@@ -88,7 +164,7 @@ private void processWorkerExit(Worker w, boolean completedAbruptly) {
         // 若completedAbruptly=false:表示正常结束,若线程池的工作线程数小于核心线程数,也创建一个工作线程,提高工作队列中任务的执行效率
         if (!completedAbruptly) {
             int min = allowCoreThreadTimeOut ? 0 : corePoolSize;
-            if (min == 0 && ! workQueue.isEmpty())
+            if (min == 0 && ! isQueueEmpty())
                 min = 1;
             if (workerCountOf(c) >= min)
                 return;
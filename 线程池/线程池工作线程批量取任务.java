@@ -0,0 +1,70 @@
+/**
+ * 工作线程批量取任务:getTask()每次从工作队列取到一个任务之后,再调用一次drainTo(),把最多workerBatchSize-1个任务
+ * 一起转移到工作线程私有的缓冲区中,runWorker()会先把缓冲区中的任务连续执行完,再调用getTask()
+ * 这样每N个任务才会加一次工作队列的锁,读一次ctl,计算一次timed和timedOut
+ * 注意:
+ * 1. 缓冲区中的任务,在shutdownNow()的drainQueue()中和工作队列中的任务一起返回
+ * 2. 线程池进入STOP状态之后,runWorker()不再执行缓冲区中的任务
+ * 3. 缓冲区中的任务执行完毕,和普通任务一样计入w.completedTasks
+ */
+
+// ---------------------------- Worker类中新增的字段 ----------------------------
+
+// 工作线程私有的任务缓冲区;shutdownNow()会在其他线程中取出缓冲区的任务,所以使用并发队列,保证每个任务只被取出一次
+final ConcurrentLinkedQueue<Runnable> buffer = new ConcurrentLinkedQueue<Runnable>();
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 工作线程一次最多取出的任务数量,默认为1,即和原来一样一次只取一个任务
+private volatile int workerBatchSize = 1;
+
+/**
+ * 设置工作线程一次最多取出的任务数量
+ */
+public void setWorkerBatchSize(int workerBatchSize) {
+    if (workerBatchSize < 1)
+        throw new IllegalArgumentException();
+    this.workerBatchSize = workerBatchSize;
+}
+
+public int getWorkerBatchSize() {
+    return workerBatchSize;
+}
+
+/**
+ * getTask()取到一个任务之后调用,把工作队列中最多workerBatchSize-1个任务转移到w的缓冲区,返回转移的任务数
+ * drainTo()只加一次工作队列的锁,且在锁内把任务加入缓冲区,所以shutdownNow()的drainQueue()要么在工作队列中,
+ * 要么在缓冲区中看到这些任务,不会遗漏
+ */
+private int drainToBuffer(Worker w) {
+    int n = workerBatchSize;
+    return (n > 1) ? workQueue.drainTo(w.buffer, n - 1) : 0;
+}
+
+/**
+ * runWorker()中,先从缓冲区取任务;线程池进入STOP状态之后返回null,缓冲区的任务留给shutdownNow()返回给调用方
+ * 截止时间已经过了的任务直接丢弃,和getTask()一样,见dropIfExpired()
+ */
+private Runnable pollBuffered(Worker w) {
+    if (w.buffer.isEmpty() || runStateAtLeast(ctl.get(), STOP))
+        return null;
+    for (Runnable r; (r = w.buffer.poll()) != null;) {
+        if (!dropIfExpired(r))
+            return r;
+    }
+    return null;
+}
+
+/**
+ * 工作线程退出时,把缓冲区中还没有执行的任务放回工作队列,只有任务抛出异常导致工作线程退出时才会出现
+ * 在processWorkerExit()中持有mainLock时调用,工作队列满了(或者已经是STOP状态)的任务放入rejected,由调用方释放锁之后调用拒绝策略
+ */
+private void requeueBuffered(Worker w, List<Runnable> rejected) {
+    boolean stopped = runStateAtLeast(ctl.get(), STOP);
+    for (Runnable r; (r = w.buffer.poll()) != null;) {
+        if (stopped || !workQueue.offer(r))
+            rejected.add(r);
+        else if (idleReaper)
+            signalIdleWorker();
+    }
+}
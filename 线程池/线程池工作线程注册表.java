@@ -0,0 +1,118 @@
+/**
+ * 无锁的工作线程注册表
+ * 原来的workers是HashSet,addWorker()和processWorkerExit()都要加mainLock才能修改它,同时更新largestPoolSize和completedTaskCount;
+ * 流量突增时大量线程同时创建,keepAliveTime到期时大量线程同时退出,恰好在线程池压力最大的时候都在mainLock上排队
+ * 现在:
+ * 1. workers换成并发集合,增加和移除工作者都不需要加锁
+ * 2. largestPoolSize换成AtomicInteger,CAS更新最大值
+ * 3. completedTaskCount换成LongAdder,累加操作分散到不同的cell上
+ * mainLock仍然保留,shutdown(),shutdownNow(),interruptIdleWorkers()等关闭流程仍然在mainLock下串行执行,
+ * 只是它们遍历的workers变成了弱一致性的并发集合,遗漏的工作者由registerWorker()中"先加入,再检查状态"的顺序兜底
+ */
+
+// workers包含线程池中的所有工作线程
+private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+
+// 线程池中曾经出现过的最大工作线程数
+private final AtomicInteger largestPoolSize = new AtomicInteger();
+
+// 已经退出的工作线程完成的任务总数,存活工作线程完成的任务数保存在各自的w.completedTasks中
+private final LongAdder completedTaskCount = new LongAdder();
+
+/**
+ * 把新建的工作者加入workers,加入成功返回true
+ * 必须先加入workers,再检查线程池状态:
+ * 关闭线程池时,shutdown()/shutdownNow()先修改线程池状态,再遍历workers打断工作线程
+ * 所以,要么这里能看到新的线程池状态,回滚这次加入;要么关闭流程遍历workers时能看到这个工作者,并打断它
+ * (还没有启动的工作者state=-1,不会被打断,但是runWorker()一开始就会检查STOP状态,效果一样)
+ */
+private boolean registerWorker(Worker w, Runnable firstTask) {
+    // 判断工作线程是否提前启动了
+    if (w.thread.isAlive())
+        throw new IllegalThreadStateException();
+    workers.add(w);
+    // 获取线程池状态
+    int rs = runStateOf(ctl.get());
+    // 判断线程池状态是否处于RUNNING,或者SHUTDOWN状态下创建一个没有firstTask的线程来处理工作队列中剩余的任务
+    if (rs < SHUTDOWN ||
+        (rs == SHUTDOWN && firstTask == null)) {
+        updateLargestPoolSize(workers.size());
+        PoolMetrics m = metrics;
+        if (m != null)
+            m.workersCreated.increment();
+        // 工作窃取模式下,重建Worker快照数组,新的Worker可以接收任务和被窃取
+        if (workStealing)
+            refreshStealTable();
+        return true;
+    }
+    // 线程池已经关闭,回滚;工作线程数由调用方在addWorkerFailed()中回滚
+    workers.remove(w);
+    return false;
+}
+
+/**
+ * CAS操作更新largestPoolSize,只会变大
+ */
+private void updateLargestPoolSize(int s) {
+    for (int largest; s > (largest = largestPoolSize.get());) {
+        if (largestPoolSize.compareAndSet(largest, s))
+            break;
+    }
+}
+
+/**
+ * 工作线程启动失败的回滚流程,不再需要加mainLock
+ */
+private void addWorkerFailed(Worker w) {
+    if (w != null) {
+        workers.remove(w);
+        if (workStealing)
+            refreshStealTable();
+    }
+    // 将工作线程数减1
+    decrementWorkerCount();
+    // 启动失败的工作线程可能导致线程池满足了关闭的条件
+    tryTerminate();
+}
+
+public int getLargestPoolSize() {
+    return largestPoolSize.get();
+}
+
+/**
+ * 已经完成的任务总数,是一个近似值:读取的过程中仍然有任务在完成,工作线程也可能正在退出
+ * 原来需要加mainLock,现在直接读取
+ */
+public long getCompletedTaskCount() {
+    long n = completedTaskCount.sum();
+    for (Worker w : workers)
+        n += w.completedTasks;
+    return n;
+}
+
+/**
+ * 打断空闲的工作线程,onlyOne=true时只打断一个
+ * 仍然加mainLock,保证关闭流程中的打断操作串行执行;遍历的是并发集合,不会阻塞工作线程的创建和退出
+ */
+private void interruptIdleWorkers(boolean onlyOne) {
+    final ReentrantLock mainLock = this.mainLock;
+    mainLock.lock();
+    try {
+        for (Worker w : workers) {
+            Thread t = w.thread;
+            // w.tryLock()成功,说明工作线程没有在执行任务,是空闲的
+            if (!t.isInterrupted() && w.tryLock()) {
+                try {
+                    t.interrupt();
+                } catch (SecurityException ignore) {
+                } finally {
+                    w.unlock();
+                }
+            }
+            if (onlyOne)
+                break;
+        }
+    } finally {
+        mainLock.unlock();
+    }
+}
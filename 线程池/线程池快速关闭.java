@@ -0,0 +1,89 @@
+/**
+ * 快速关闭线程池,以及关闭流程各阶段的耗时
+ * 原来tryTerminate()每次只打断一个空闲线程(interruptIdleWorkers(ONLY_ONE)),被打断的线程退出时在processWorkerExit()中
+ * 再调用tryTerminate()打断下一个,2000个空闲线程就要一个接一个地串行退出,awaitTermination()要等很久
+ * 开启bulkTermination之后,tryTerminate()第一次满足关闭条件时,一次性打断全部空闲线程,所有空闲线程同时退出;
+ * 之后的tryTerminate()仍然打断一个,作为兜底(此时几乎没有空闲线程了,开销可以忽略);
+ * 最后一个退出的工作线程在tryTerminate()中完成TIDYING->TERMINATED,和原来一样
+ * 为什么一次性打断是安全的:满足关闭条件时(STOP,或者SHUTDOWN且工作队列为空),空闲线程被打断后在getTask()中重新检查状态,都会返回null退出;
+ * 当时正在执行任务的线程没有被打断,但是执行完任务之后回到getTask(),先检查状态,同样会退出,不会再阻塞
+ */
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 是否一次性打断全部空闲线程
+private volatile boolean bulkTermination;
+// 是否已经一次性打断过全部空闲线程,只需要打断一次
+private final AtomicBoolean terminationBroadcast = new AtomicBoolean();
+// 关闭流程各阶段的时间点
+private final ShutdownTimings shutdownTimings = new ShutdownTimings();
+
+public void setBulkTermination(boolean bulkTermination) {
+    this.bulkTermination = bulkTermination;
+}
+
+/**
+ * 关闭流程各阶段的时间点,还没有开始关闭时返回的各项都是0
+ */
+public ShutdownTimings getShutdownTimings() {
+    return shutdownTimings;
+}
+
+/**
+ * tryTerminate()中还有存活的工作线程时调用,代替原来的interruptIdleWorkers(ONLY_ONE)
+ */
+private void interruptIdleWorkersForTermination() {
+    if (bulkTermination && terminationBroadcast.compareAndSet(false, true)) {
+        interruptIdleWorkers(false);
+        shutdownTimings.mark(ShutdownTimings.BROADCAST);
+    } else
+        interruptIdleWorkers(ONLY_ONE);
+}
+
+/**
+ * 关闭流程各阶段的时间点(System.nanoTime()),每个阶段只记录第一次
+ * REQUESTED:调用shutdown()/shutdownNow()
+ * INTERRUPTED:shutdown()/shutdownNow()打断工作线程完毕
+ * DRAINED:shutdownNow()移除工作队列中的全部任务完毕
+ * BROADCAST:tryTerminate()一次性打断全部空闲线程完毕(只有开启bulkTermination时才有)
+ * TIDYING:最后一个工作线程退出,线程池状态变成TIDYING
+ * TERMINATED:terminated()执行完毕,线程池状态变成TERMINATED
+ */
+public static final class ShutdownTimings {
+    public static final int REQUESTED   = 0;
+    public static final int INTERRUPTED = 1;
+    public static final int DRAINED     = 2;
+    public static final int BROADCAST   = 3;
+    public static final int TIDYING     = 4;
+    public static final int TERMINATED  = 5;
+
+    private final AtomicLongArray marks = new AtomicLongArray(6);
+
+    void mark(int phase) {
+        // 0表示还没有记录;nanoTime()恰好等于0的概率可以忽略
+        marks.compareAndSet(phase, 0L, System.nanoTime());
+    }
+
+    /**
+     * 某个阶段的时间点,没有记录时返回0
+     */
+    public long at(int phase) {
+        return marks.get(phase);
+    }
+
+    /**
+     * 从REQUESTED到某个阶段经过的时间(纳秒),没有记录时返回-1
+     */
+    public long sinceRequested(int phase) {
+        long start = marks.get(REQUESTED), t = marks.get(phase);
+        return (start == 0L || t == 0L) ? -1L : t - start;
+    }
+
+    public String toString() {
+        return "interrupted=" + sinceRequested(INTERRUPTED) +
+            "ns, drained=" + sinceRequested(DRAINED) +
+            "ns, broadcast=" + sinceRequested(BROADCAST) +
+            "ns, tidying=" + sinceRequested(TIDYING) +
+            "ns, terminated=" + sinceRequested(TERMINATED) + "ns";
+    }
+}
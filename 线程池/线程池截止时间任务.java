@@ -0,0 +1,101 @@
+/**
+ * 带截止时间的任务:超过截止时间之后,由线程池负责取消
+ * 原来awaitDone(true, nanos)超时只是调用方不再等待,任务仍然在排队或者在执行,结果早就没人要了,还占着工作线程
+ * 现在任务带一个截止时间:
+ * 1. 截止时间到了还在排队的任务,在getTask()(以及批量取任务的pollBuffered())出队时直接丢弃,取消之后继续取下一个任务
+ * 2. 截止时间到了还在执行的任务,由时间轮线程调用cancel(true)打断;所有任务共用一个时间轮(见线程池时间轮定时任务.java),
+ *    不是每个任务一个定时器,登记和撤销都是O(1);任务提前完成时在done()中撤销
+ * 3. 因为截止时间而被取消的任务数通过getExpiredDeadlineCount()读取
+ * 打断只是一个请求,任务需要响应打断(阻塞方法抛出InterruptedException,或者检查中断标志)才能真正提前结束
+ */
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 因为截止时间而被取消的任务数
+private final LongAdder expiredDeadlines = new LongAdder();
+
+/**
+ * 提交一个带截止时间的任务,timeout之后还没有完成就被取消
+ */
+public <T> Future<T> submitWithDeadline(Callable<T> task, long timeout, TimeUnit unit) {
+    if (task == null)
+        throw new NullPointerException();
+    return submitDeadlineTask(new DeadlineTask<T>(task, System.nanoTime() + unit.toNanos(timeout)));
+}
+
+public Future<?> submitWithDeadline(Runnable task, long timeout, TimeUnit unit) {
+    if (task == null)
+        throw new NullPointerException();
+    return submitDeadlineTask(new DeadlineTask<Object>(Executors.callable(task),
+                                                       System.nanoTime() + unit.toNanos(timeout)));
+}
+
+private <T> Future<T> submitDeadlineTask(DeadlineTask<T> t) {
+    // 先入队再登记到时间轮:线程池拒绝时和execute()一样由拒绝策略处理,不会在登记时就抛出RejectedExecutionException
+    execute(t);
+    // 登记之前任务就开始执行也没关系,截止时间到了照样打断;还在排队时过期,出队时由dropIfExpired()丢弃
+    try {
+        t.timer = scheduleTimeout(t::expire, t.deadline - System.nanoTime(), 0L, true);
+    } catch (RejectedExecutionException ex) {
+        // 线程池刚好进入STOP状态,队列中的任务已经被shutdownNow()移除,不需要再跟踪
+        return t;
+    }
+    // 登记之前任务已经完成(或者被拒绝策略取消),done()中没有定时器可以撤销,这里撤销
+    if (t.isDone())
+        t.timer.cancel();
+    return t;
+}
+
+public long getExpiredDeadlineCount() {
+    return expiredDeadlines.sum();
+}
+
+/**
+ * 出队时检查截止时间,返回true表示任务已经过期(或者已经被时间轮取消了),调用方应该丢弃它
+ * 在getTask()和pollBuffered()中调用;不是DeadlineTask的任务只多一次instanceof判断
+ */
+private boolean dropIfExpired(Runnable r) {
+    if (!(r instanceof DeadlineTask))
+        return false;
+    DeadlineTask<?> t = (DeadlineTask<?>) r;
+    if (t.isDone())
+        return true;
+    if (System.nanoTime() - t.deadline < 0L)
+        return false;
+    // 还在排队,不需要打断;时间轮可能同时在取消它,只有cancel()成功的一方计数
+    if (t.cancel(false))
+        expiredDeadlines.increment();
+    return true;
+}
+
+/**
+ * 带截止时间的FutureTask
+ */
+final class DeadlineTask<V> extends FutureTask<V> {
+    // 截止时间(System.nanoTime())
+    final long deadline;
+    // 时间轮中的定时器,任务完成时撤销
+    volatile Timeout timer;
+
+    DeadlineTask(Callable<V> callable, long deadline) {
+        super(callable);
+        this.deadline = deadline;
+    }
+
+    /**
+     * 截止时间到了,在时间轮线程中执行:还在执行就打断,还在排队就只修改状态,出队时再丢弃
+     */
+    void expire() {
+        if (cancel(true))
+            expiredDeadlines.increment();
+    }
+
+    /**
+     * finishCompletion()中调用,任务提前完成(或者被取消)时撤销定时器,让时间轮尽快释放它
+     */
+    protected void done() {
+        Timeout t = timer;
+        if (t != null)
+            t.cancel();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * 批量向线程池提交任务
+ * 逐个调用execute()时,每个任务都要读取ctl,入队之后再recheck,队列满了还要单独调用一次addWorker()(每次都加一次mainLock);
+ * executeAll()对整批任务只做一次这些判断:
+ * 1. 核心线程不足时,一次addWorkers()创建出需要的核心线程,批次前面的任务作为它们的firstTask
+ * 2. 剩余的任务连续入队,整批入队完成之后只recheck一次
+ * 3. 队列放不下的任务,再一次addWorkers()创建非核心线程
+ * 4. 仍然放不下的任务,才逐个调用拒绝策略
+ */
+public void executeAll(Collection<? extends Runnable> commands) {
+    if (commands == null)
+        throw new NullPointerException();
+    Runnable[] tasks = commands.toArray(new Runnable[0]);
+    for (Runnable t : tasks)
+        if (t == null)
+            throw new NullPointerException();
+    int n = tasks.length;
+    // i:下一个待处理任务的下标
+    int i = 0;
+    int c = ctl.get();
+    int wc = workerCountOf(c);
+    // 工作线程数小于核心线程数,一次性创建出整批任务需要的核心线程
+    if (wc < corePoolSize) {
+        i += addWorkers(tasks, 0, Math.min(n, corePoolSize - wc), true);
+        c = ctl.get();
+    }
+    // 先扩容再入队的提交策略:预定到的空闲线程不够分的任务,先一次性创建非核心线程来执行
+    if (submissionPolicy == SubmissionPolicy.GROW_FIRST && i < n && isRunning(c)) {
+        int want = (n - i) - reserveIdleWorkers(n - i);
+        if (want > 0) {
+            i += addWorkers(tasks, i, want, false);
+            c = ctl.get();
+        }
+    }
+    // 连续入队,直到队列满了为止
+    int queuedFrom = i;
+    if (isRunning(c)) {
+        while (i < n && offerTask(tasks[i]))
+            i++;
+    }
+    // 整批入队完成之后,只recheck一次,和execute()中的recheck逻辑相同
+    if (i > queuedFrom) {
+        int recheck = ctl.get();
+        // 线程池已经不处于RUNNING状态,把这一批刚入队的任务移除,并调用拒绝策略
+        if (! isRunning(recheck)) {
+            for (int j = queuedFrom; j < i; j++)
+                if (remove(tasks[j]))
+                    reject(tasks[j]);
+        }
+        else if (workerCountOf(recheck) == 0)
+            addWorker(null, false);
+    }
+    // 队列满了,剩余的任务一次性创建非核心线程来执行
+    if (i < n)
+        i += addWorkers(tasks, i, n - i, false);
+    // 剩下的任务既放不进队列,也没有线程可以执行,逐个调用拒绝策略
+    for (; i < n; i++)
+        reject(tasks[i]);
+}
+
+/**
+ * executeAll()对应的submit()版本:把每个Callable包装成FutureTask之后批量提交,不等待任务执行完毕
+ * 注意:和AbstractExecutorService.invokeAll()不同,invokeAll()会阻塞到全部任务执行完毕
+ */
+public <T> List<Future<T>> submitAll(Collection<? extends Callable<T>> tasks) {
+    if (tasks == null)
+        throw new NullPointerException();
+    ArrayList<RunnableFuture<T>> futures = new ArrayList<RunnableFuture<T>>(tasks.size());
+    for (Callable<T> t : tasks)
+        futures.add(newTaskFor(t));
+    executeAll(futures);
+    return Collections.<Future<T>>unmodifiableList(futures);
+}
+
+/**
+ * 批量增加工作线程,tasks[from, from + n)依次作为新工作线程的firstTask
+ * 和addWorker()的区别:
+ * 1. 工作线程数通过一次CAS操作增加k个,而不是每个线程一次CAS
+ * 2. 新建的工作者对象全部加入workers之后,只检查一次线程池状态
+ * 返回实际启动成功的工作线程数k,即tasks[from, from + k)已经被工作线程接收,剩余的任务由调用方处理
+ */
+private int addWorkers(Runnable[] tasks, int from, int n, boolean core) {
+    int k;
+    retry:
+    for (;;) {
+        int c = ctl.get();
+        int rs = runStateOf(c);
+        // firstTask不为null,只有RUNNING状态才能创建工作线程
+        if (rs >= SHUTDOWN)
+            return 0;
+        for (;;) {
+            int wc = workerCountOf(c);
+            int limit = Math.min(CAPACITY, core ? corePoolSize : maxWorkers());
+            // 计算这一批最多还能创建几个工作线程
+            k = Math.min(n, limit - wc);
+            if (k <= 0)
+                return 0;
+            // CAS操作一次性增加k个工作线程数
+            if (ctl.compareAndSet(c, c + k))
+                break retry;
+            c = ctl.get();
+            if (runStateOf(c) != rs)
+                continue retry;
+        }
+    }
+
+    Worker[] ws = new Worker[k];
+    int added = 0;
+    int started = 0;
+    WorkerSpawnEvent ev = WorkerSpawnEvent.TYPE.isEnabled() ? new WorkerSpawnEvent() : null;
+    if (ev != null)
+        ev.begin();
+    try {
+        for (int j = 0; j < k; j++)
+            ws[j] = new Worker(tasks[from + j]);
+        // 线程工厂创建线程失败(thread为null)的工作者,及其之后的工作者都不加入workers,后面统一回滚
+        while (added < k && ws[added].thread != null) {
+            if (ws[added].thread.isAlive())
+                throw new IllegalThreadStateException();
+            workers.add(ws[added]);
+            added++;
+        }
+        // 先加入workers再检查状态,原因见registerWorker();firstTask不为null,只有RUNNING状态才能启动
+        if (added > 0) {
+            if (runStateOf(ctl.get()) < SHUTDOWN) {
+                updateLargestPoolSize(workers.size());
+                PoolMetrics m = metrics;
+                if (m != null)
+                    m.workersCreated.add(added);
+                if (workStealing)
+                    refreshStealTable();
+            } else
+                added = 0;
+        }
+        for (; started < added; started++)
+            ws[started].thread.start();
+    } finally {
+        // 没有启动成功的工作者,逐个回滚工作线程数,并从workers中移除(包括已经加入workers,但是状态检查没有通过的工作者)
+        // 注意:firstTask被包在了没有启动的Worker中,调用方会对tasks[from + started]之后的任务继续处理(入队或者拒绝)
+        for (int j = started; j < k; j++)
+            addWorkerFailed(ws[j]);
+        if (ev != null) {
+            ev.core = core;
+            ev.started = started;
+            ev.poolSize = workerCountOf(ctl.get());
+            ev.commit();
+        }
+    }
+    return started;
+}
@@ -0,0 +1,178 @@
+/**
+ * 按key串行执行:同一个key(例如账户,会话)的任务按提交顺序依次执行,不同key的任务在线程池中并行执行
+ * 原来的做法是给每个key一把锁,在任务中加锁;同一个key的任务同时被多个工作线程取到时,除了一个之外都阻塞在锁上,白白占用工作线程
+ * 现在每个key有一个无锁的邮箱(mailbox),任务先放入邮箱,邮箱本身作为一个Runnable提交给线程池,同一时刻最多只有一个在执行:
+ * 1. 邮箱的pending计数从0变成1的提交线程,负责把邮箱提交给线程池
+ * 2. 邮箱执行时,依次取出任务执行,每执行完一个pending减1,减到0就结束,不会阻塞等待
+ * 3. 连续执行throughput个任务之后,把邮箱重新提交给线程池排队,不会让一个繁忙的key长时间占用工作线程
+ * 4. 邮箱空了之后从map中移除,所以不活跃的key不占用内存,可以支撑百万级别的key
+ * 每个key积压的任务数不能超过maxBacklog,超过时抛出RejectedExecutionException
+ * 线程池拒绝邮箱时,邮箱中已经接收的任务逐个交给拒绝策略(executor是ThreadPoolExecutor时),或者取消(任务是Future时),不会被悄悄丢弃
+ */
+public class KeyedSerialExecutor<K> {
+
+    private final Executor executor;
+    private final int maxBacklog;
+    private final int throughput;
+    private final ConcurrentHashMap<K, Mailbox> mailboxes = new ConcurrentHashMap<K, Mailbox>();
+
+    /**
+     * executor:执行邮箱的线程池
+     * maxBacklog:每个key最多积压的任务数
+     * throughput:邮箱每次最多连续执行的任务数
+     */
+    public KeyedSerialExecutor(Executor executor, int maxBacklog, int throughput) {
+        if (executor == null)
+            throw new NullPointerException();
+        if (maxBacklog <= 0 || throughput <= 0)
+            throw new IllegalArgumentException();
+        this.executor = executor;
+        this.maxBacklog = maxBacklog;
+        this.throughput = throughput;
+    }
+
+    /**
+     * 提交任务,同一个key的任务按提交顺序执行
+     */
+    public void execute(K key, Runnable task) {
+        if (key == null || task == null)
+            throw new NullPointerException();
+        for (;;) {
+            Mailbox m = mailboxes.computeIfAbsent(key, k -> new Mailbox(k));
+            if (m.offer(task))
+                return;
+            // 邮箱已经退役(pending=-1),帮忙把它从map中移除,然后重新创建一个
+            mailboxes.remove(key, m);
+        }
+    }
+
+    /**
+     * 当前有积压任务的key的数量
+     */
+    public int activeKeys() {
+        return mailboxes.size();
+    }
+
+    /**
+     * 一个key的邮箱
+     * pending:已经提交还没有执行完的任务数;-1表示邮箱已经退役,不再接收任务
+     */
+    final class Mailbox implements Runnable {
+        final K key;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        final AtomicInteger pending = new AtomicInteger();
+
+        Mailbox(K key) {
+            this.key = key;
+        }
+
+        /**
+         * 邮箱已经退役时返回false,积压的任务数超过上限时抛出RejectedExecutionException
+         */
+        boolean offer(Runnable task) {
+            for (int n;;) {
+                if ((n = pending.get()) < 0)
+                    return false;
+                if (n >= maxBacklog)
+                    throw new RejectedExecutionException("Backlog of key " + key + " exceeds " + maxBacklog);
+                // 先占位再入队,pending>0期间邮箱一直处于被调度的状态
+                if (pending.compareAndSet(n, n + 1)) {
+                    tasks.offer(task);
+                    // pending从0变成1的线程负责调度邮箱
+                    if (n == 0)
+                        schedule(task);
+                    return true;
+                }
+            }
+        }
+
+        void schedule(Runnable task) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                // 线程池拒绝了邮箱(例如已经关闭或者饱和),把异常抛给提交线程;这期间其他线程放入邮箱的任务交给拒绝策略
+                rejectBacklog(task, ex);
+                throw ex;
+            }
+        }
+
+        /**
+         * 线程池拒绝了邮箱,依次拒绝积压的任务,直到pending减到0才退役
+         * 和run()一样每处理一个任务pending减1,期间新提交的任务也排在后面,由当前线程一起处理,
+         * 邮箱在积压清空之前不会退役,所以同一个key不会同时出现两个邮箱,拒绝策略(例如CallerRunsPolicy)看到的任务仍然是提交顺序
+         * self:提交线程自己的任务,异常会直接抛给它,不再交给拒绝策略
+         */
+        void rejectBacklog(Runnable self, RejectedExecutionException ex) {
+            for (;;) {
+                Runnable task = tasks.poll();
+                // 提交线程已经占位,还没有把任务放入队列,很快就会放入
+                if (task == null) {
+                    Thread.yield();
+                    continue;
+                }
+                if (task == self)
+                    self = null;
+                else
+                    rejectTask(task, ex);
+                if (pending.decrementAndGet() == 0) {
+                    // 失败说明刚好有新任务提交,提交线程已经重新调度了邮箱
+                    if (pending.compareAndSet(0, -1))
+                        mailboxes.remove(key, this);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * executor是ThreadPoolExecutor时交给它的拒绝策略,和直接提交被拒绝时一样;否则取消Future任务,
+         * 两者都不是时,把异常交给线程的UncaughtExceptionHandler
+         */
+        void rejectTask(Runnable task, RejectedExecutionException ex) {
+            try {
+                if (executor instanceof ThreadPoolExecutor)
+                    ((ThreadPoolExecutor) executor).reject(task);
+                else if (task instanceof Future)
+                    ((Future<?>) task).cancel(false);
+                else
+                    throw ex;
+            } catch (Throwable x) {
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, x);
+            }
+        }
+
+        public void run() {
+            for (int i = 0; i < throughput; i++) {
+                Runnable task = tasks.poll();
+                // pending>0但是取不到任务:提交线程已经占位,还没有把任务放入队列,重新排队,不在这里自旋等待
+                if (task == null) {
+                    resubmit();
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (Throwable ex) {
+                    // 任务的异常不能影响同一个key后续的任务
+                    Thread t = Thread.currentThread();
+                    t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    // 没有积压的任务了,尝试退役;失败说明刚好有新任务提交,提交线程已经重新调度了邮箱,这里直接返回
+                    if (pending.compareAndSet(0, -1))
+                        mailboxes.remove(key, this);
+                    return;
+                }
+            }
+            // 连续执行了throughput个任务,还有积压,重新排队,让其他key的邮箱也有机会执行
+            resubmit();
+        }
+
+        void resubmit() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                rejectBacklog(null, ex);
+            }
+        }
+    }
+}
@@ -4,6 +4,24 @@
 public void execute(Runnable command) {
     if (command == null)
         throw new NullPointerException();
+    // 线程池已经关闭,或者工作队列和工作线程都满了,调用拒绝策略
+    if (tryEnqueue(command) != ACCEPTED)
+        reject(command);
+}
+
+// tryEnqueue()的返回值
+// ACCEPTED:任务已经被工作线程或者工作队列接收
+// SATURATED:线程池处于RUNNING状态,但是工作队列满了,工作线程数也达到了上限
+// NOT_RUNNING:线程池不处于RUNNING状态
+static final int ACCEPTED    = 0;
+static final int SATURATED   = 1;
+static final int NOT_RUNNING = 2;
+
+/**
+ * 尝试把任务交给线程池,不调用拒绝策略,由调用方根据返回值决定怎么处理没有被接收的任务
+ * execute()调用拒绝策略,submit(task, timeout)等待工作队列的空位,trySubmit()返回空位的就绪信号
+ */
+private int tryEnqueue(Runnable command) {
     // clt的高3位表示线程状态,低29位表示工作线程数
     int c = ctl.get();
     // workerCountOf(c)作用:得到当前线程池的线程数
@@ -12,23 +30,33 @@ public void execute(Runnable command) {
         // 创建一个新的工作线程来执行任务
         // 注意:这里不需要判断线程池的状态,addWorker()方法里面会判定
         if (addWorker(command,true))
-            return;
+            return ACCEPTED;
+        c = ctl.get();
+    }
+    // 先扩容再入队的提交策略:预定不到空闲线程时,先创建非核心线程来执行任务,达到最大线程数之后才入队
+    // 创建失败(达到最大线程数或者线程池已经关闭)时,继续走下面入队的流程,和原来一样
+    if (submissionPolicy == SubmissionPolicy.GROW_FIRST &&
+        isRunning(c) && reserveIdleWorkers(1) == 0) {
+        if (addWorker(command,false))
+            return ACCEPTED;
         c = ctl.get();
     }
     // isRunning():判断线程池状态是不是RUNNING
     // workQueue.offer():任务添加到队列中,成功返回true,失败返回fasle
-    if (isRunning(c) && workQueue.offer(command)) {
+    // 工作窃取模式下,任务放入Worker本地的deque中;开启运行指标时,任务会带上入队时间,见offerTask()
+    if (isRunning(c) && offerTask(command)) {
         // 能进入这里,表示任务已经添加到了工作队列中
         int recheck = ctl.get();
         // 再次判断线程池是否RUNNING,防止此时线程池被关闭
         // 若线程池不处于RUNNING状态,则从工作队列中移除刚入队的任务,同时尝试将线程池状态改为TERMINATED,真正的关闭
         if (! isRunning(recheck) && remove(command))
-            // 调用线程池的拒绝策略来处理此任务
-            reject(command);
+            // 由调用方来处理此任务,execute()中会调用线程池的拒绝策略
+            return NOT_RUNNING;
         // 这里是一个很有意思的点:如果设置线程池的核心线程数为0,工作队列为无界队列,那么,正常来说,队列中的任务,应该永远也不会执行,因为没有工作线程被创建出来
         // 但是,因为这里有了workerCountOf(recheck) == 0的判断,即使工作队列没有满,仍然会创建一个工作线程来执行工作队列中的任务
         else if (workerCountOf(recheck) == 0)
             addWorker(null,false);
+        return ACCEPTED;
     }
     // 能进入这里,有两种情况:
     //      1. 线程池不处于RUNNING状态
@@ -36,8 +64,9 @@ public void execute(Runnable command) {
     // 针对情况1:由于addWorker()会判断线程池状态,这里会创建工作线程失败,直接返回false,然后调用拒绝策略;
     //          小概率情况--线程池是SHUTDOWN状态,firstTask(command)为null,工作队列不为空,可能会创建工作线程成功
     // 针对情况2:创建新的工作线程来当前的任务,若当前工作线程数大于指定的最大工作线程数,也会返回false,然后调用拒绝策略;
-    else if (!addWorker(command,false))
-        reject(command);
+    if (addWorker(command,false))
+        return ACCEPTED;
+    return isRunning(ctl.get()) ? SATURATED : NOT_RUNNING;
 }
 
 /**
@@ -54,7 +83,7 @@ private boolean addWorker(Runnable firstTask,boolean core) {
         if (rs >= SHUTDOWN &&
             ! (rs == SHUTDOWN &&
                firstTask == null &&
-               ! workQueue.isEmpty()))
+               ! isQueueEmpty()))
             return false;
         // 死循环:CAS修改工作线程数
         for (;;) {
@@ -62,9 +91,9 @@ private boolean addWorker(Runnable firstTask,boolean core) {
             int wc = workerCountOf(c);
             // 若工作线程数大于最大线程容量(536870911),创建新线程失败,返回fasle
             // 若工作线程数大于约束,创建新线程失败,返回fasle
-            // 若core=true,表示使用核心线程数做约束,core=false,表示使用最大线程数做约束
+            // 若core=true,表示使用核心线程数做约束,core=false,表示使用最大线程数做约束(虚拟线程模式下是最大并发数)
             if (wc >= CAPACITY ||
-                wc >= (core ? corePoolSize : maximumPoolSize))
+                wc >= (core ? corePoolSize : maxWorkers()))
                 return false;
             // CAS操作修改增加工作线程数
             if (compareAndIncrementWorkerCount(c))
@@ -81,36 +110,19 @@ private boolean addWorker(Runnable firstTask,boolean core) {
     boolean workerStarted = false;
     boolean workerAdded = false;
     Worker w = null;
+    // JFR:记录创建和启动工作线程的耗时
+    WorkerSpawnEvent ev = WorkerSpawnEvent.TYPE.isEnabled() ? new WorkerSpawnEvent() : null;
+    if (ev != null)
+        ev.begin();
     try {
         // 根据传入的任务,创建工作者对象
         w = new Worker(firstTask);
-        // 根据工作者对象创建工作线程
+        // 根据工作者对象创建工作线程,虚拟线程模式下是虚拟线程,见newWorkerThread()
         final Thread t = w.thread;
         if (t != null) {
-            final ReentrantLock mainLock = this.mainLock;
-            // 加锁,防止workers.add(w)操作产生并发安全问题
-            mainLock.lock();
-            try {
-                // 获取线程池状态
-                int rs = runStateOf(ctl.get());
-                // 判断线程池状态是否处于RUNNING
-                if (rs < SHUTDOWN ||
-                    (rs == SHUTDOWN && firstTask == null)) {
-                    // 判断工作线程是否提前启动了
-                    if (t.isAlive())
-                        throw new IllegalThreadStateException();
-                    // 将新建的工作者对象加入到workers中,workers包含线程池中的所有工作线程
-                    workers.add(w);
-                    int s = workers.size();
-                    if (s > largestPoolSize)
-                        largestPoolSize = s;
-                    // 标识新建工作线程成功
-                    workerAdded = true;
-                }
-            } finally {
-                // 解锁
-                mainLock.unlock();
-            }
+            // 将新建的工作者对象加入到workers中,workers包含线程池中的所有工作线程
+            // workers是并发集合,不再需要加mainLock,大量线程同时创建时不会在mainLock上排队,见registerWorker()
+            workerAdded = registerWorker(w, firstTask);
             if (workerAdded) {
                 // 启动线程
                 // 由于t指向w.thread所引用的对象,而w是Runnable的实现类,工作线程t是以w作为Runnable参数所创建的一个线程对象,
@@ -124,6 +136,12 @@ private boolean addWorker(Runnable firstTask,boolean core) {
         if (! workerStarted)
             // 工作线程启动失败,将CAS操作减少工作线程数,移除workers中的w
             addWorkerFailed(w);
+        if (ev != null) {
+            ev.core = core;
+            ev.started = workerStarted ? 1 : 0;
+            ev.poolSize = workerCountOf(ctl.get());
+            ev.commit();
+        }
     }
     // 返回线程启动成功标识
     return workerStarted;
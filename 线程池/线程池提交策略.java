@@ -0,0 +1,61 @@
+/**
+ * 任务提交策略
+ * execute()在核心线程都创建出来之后,总是优先把任务放入工作队列,只有队列满了才会创建非核心线程;
+ * 工作队列是一个很大的有界队列时,任务在队列中排在忙碌的核心线程后面,而maximumPoolSize允许的非核心线程一直用不上
+ * GROW_FIRST策略:没有空闲线程时,先创建非核心线程直到maximumPoolSize,线程数达到上限之后才入队
+ * 只改变execute()中addWorker()和workQueue.offer()的先后顺序,不依赖工作队列的具体实现,任何BlockingQueue都适用
+ */
+
+public enum SubmissionPolicy {
+    // 默认策略:核心线程 -> 工作队列 -> 非核心线程 -> 拒绝策略
+    QUEUE_FIRST,
+    // 先扩容再入队:核心线程 -> 非核心线程(没有空闲线程时) -> 工作队列 -> 拒绝策略
+    GROW_FIRST
+}
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 任务提交策略
+private volatile SubmissionPolicy submissionPolicy = SubmissionPolicy.QUEUE_FIRST;
+// 正在getTask()中等待任务的工作线程数(包括自旋和阻塞),GROW_FIRST策略据此判断是否需要新建线程
+private final AtomicInteger idleWorkerCount = new AtomicInteger();
+// 已经被GROW_FIRST的提交者预定的空闲线程数,不超过idleWorkerCount
+// 多个线程同时提交时,只读idleWorkerCount的话,它们会看到同一个空闲线程,全部入队而不扩容;
+// 现在每个提交者入队之前先CAS预定一个还没有被预定的空闲线程,预定不到才扩容
+private final AtomicInteger reservedIdleWorkers = new AtomicInteger();
+
+public void setSubmissionPolicy(SubmissionPolicy submissionPolicy) {
+    if (submissionPolicy == null)
+        throw new NullPointerException();
+    this.submissionPolicy = submissionPolicy;
+}
+
+public SubmissionPolicy getSubmissionPolicy() {
+    return submissionPolicy;
+}
+
+/**
+ * 预定最多n个还没有被预定的空闲线程,返回预定到的个数
+ */
+private int reserveIdleWorkers(int n) {
+    for (;;) {
+        int r = reservedIdleWorkers.get();
+        int k = Math.min(n, idleWorkerCount.get() - r);
+        if (k <= 0)
+            return 0;
+        if (reservedIdleWorkers.compareAndSet(r, r + k))
+            return k;
+    }
+}
+
+/**
+ * 工作线程结束等待时调用,和idleWorkerCount一起减1,归还一个预定
+ * 不区分取到的是不是预定它的那个任务:预定只是一个计数,保证同时入队的任务数不超过空闲线程数
+ * 仍然是近似的:刚被唤醒还没有减1的线程也会被预定,最坏情况下这个任务入队之后稍等一会才被执行,不会多建线程
+ */
+private void releaseIdleReservation() {
+    for (int r; (r = reservedIdleWorkers.get()) > 0;) {
+        if (reservedIdleWorkers.compareAndSet(r, r - 1))
+            return;
+    }
+}
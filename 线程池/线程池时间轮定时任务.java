@@ -0,0 +1,381 @@
+/**
+ * 基于分层时间轮的延迟任务和周期任务,到期的任务交给线程池的工作线程执行
+ * 原来延迟任务需要另外一个ScheduledThreadPoolExecutor,它有自己的线程和基于堆的队列,入队和取消都是O(log n);
+ * 每秒几十万个超时任务,而且绝大多数都会被取消的场景下,堆和额外的线程带来大量的CPU和GC开销
+ * 分层时间轮:
+ * 1. 一共4层,每层256个槽,第0层每个槽代表一个tick,第1层每个槽代表256个tick,以此类推,4层一共可以表示2^32个tick
+ * 2. 定时任务按到期的tick放入对应层的槽中,槽是一个双向链表,放入和移除都是O(1)
+ * 3. 时间轮线程每个tick前进一格,执行第0层当前槽中的任务;第0层转完一圈时,把第1层的下一个槽中的任务重新分配到第0层(降级),以此类推
+ * 4. 取消只是CAS修改状态,然后放入取消队列,由时间轮线程在下一个tick从链表中摘除,O(1),被取消的任务和它引用的对象马上可以被回收
+ * 提交和取消都只操作无锁队列,只有时间轮线程会修改槽中的链表,所以链表不需要加锁
+ * 时间轮线程只负责分发,不执行任务,到期的任务通过tryEnqueue()交给工作线程,和普通任务一样排队;
+ * 不经过拒绝策略:CallerRunsPolicy会让任务在时间轮线程中执行,卡住所有的定时任务
+ * 线程池饱和时,周期任务跳过这一次,按周期安排下一次;一次性任务推迟到下一个tick重试;线程池已经关闭时取消
+ * 跳过和推迟的次数通过getDeferredTimeoutCount()读取
+ * 和ScheduledThreadPoolExecutor一样,周期任务抛出异常之后不再安排后续的执行,异常交给任务失败处理器,见reportTaskFailure()
+ */
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 时间轮,第一次提交定时任务时创建
+private volatile TimerWheel timerWheel;
+// 时间轮一个tick的时长,默认1毫秒
+private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+// 到期时线程池饱和,被跳过(周期任务)或者推迟(一次性任务)的次数
+private final LongAdder deferredTimeouts = new LongAdder();
+
+/**
+ * 延迟delay之后执行一次task
+ */
+public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    return scheduleTimeout(task, unit.toNanos(delay), 0L, false);
+}
+
+/**
+ * 固定频率执行:第一次在initialDelay之后执行,之后每次的到期时间是上一次的到期时间加上period
+ * 和ScheduledThreadPoolExecutor一样,上一次执行结束之后才会安排下一次,同一个任务不会并发执行
+ */
+public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+    if (period <= 0)
+        throw new IllegalArgumentException();
+    return scheduleTimeout(task, unit.toNanos(initialDelay), unit.toNanos(period), false);
+}
+
+/**
+ * 固定延迟执行:第一次在initialDelay之后执行,之后每次在上一次执行结束之后,再延迟delay执行
+ */
+public Timeout scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+    if (delay <= 0)
+        throw new IllegalArgumentException();
+    // period为负数表示固定延迟
+    return scheduleTimeout(task, unit.toNanos(initialDelay), -unit.toNanos(delay), false);
+}
+
+/**
+ * inline=true:到期时直接在时间轮线程中执行,不经过execute()排队,只用于线程池内部很轻的动作(例如截止时间到期时取消任务,见线程池截止时间任务.java)
+ * 用户的定时任务在线程池关闭之后不能再提交;线程池内部的inline动作在shutdown()之后仍然可以登记,直到STOP
+ */
+private Timeout scheduleTimeout(Runnable task, long delayNanos, long period, boolean inline) {
+    if (task == null)
+        throw new NullPointerException();
+    int c = ctl.get();
+    if (inline ? runStateAtLeast(c, STOP) : !isRunning(c))
+        throw new RejectedExecutionException("Executor is shut down");
+    TimerWheel wheel = timerWheel;
+    if (wheel == null) {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            if ((wheel = timerWheel) == null) {
+                wheel = new TimerWheel();
+                wheel.start();
+                timerWheel = wheel;
+            }
+        } finally {
+            mainLock.unlock();
+        }
+    }
+    Timeout t = new Timeout(wheel, task, System.nanoTime() + Math.max(0L, delayNanos), period, inline);
+    wheel.add(t);
+    return t;
+}
+
+public long getDeferredTimeoutCount() {
+    return deferredTimeouts.sum();
+}
+
+/**
+ * 停止时间轮,还没有到期的定时任务都被取消,在shutdownNow()和tryTerminate()(线程池TERMINATED时)中调用
+ * shutdown()之后时间轮继续运行:用户的定时任务到期时线程池已经不接收任务,被取消;截止时间这类inline动作照常执行
+ */
+private void stopTimerWheel() {
+    TimerWheel wheel = timerWheel;
+    if (wheel != null)
+        wheel.thread.interrupt();
+}
+
+/**
+ * 一个定时任务
+ */
+public final class Timeout implements Runnable {
+    static final int PENDING   = 0;
+    static final int EXPIRED   = 1;
+    static final int CANCELLED = 2;
+
+    final TimerWheel wheel;
+    // 取消之后置为null,让任务引用的对象尽快被回收
+    volatile Runnable task;
+    // 到期时间(System.nanoTime())
+    long deadline;
+    // 0:一次性任务;>0:固定频率;<0:固定延迟
+    final long period;
+    // 到期时在时间轮线程中直接执行
+    final boolean inline;
+    final AtomicInteger state = new AtomicInteger(PENDING);
+
+    // 槽中的双向链表,只有时间轮线程访问
+    Timeout prev, next;
+    TimerWheel.Slot slot;
+
+    Timeout(TimerWheel wheel, Runnable task, long deadline, long period, boolean inline) {
+        this.wheel = wheel;
+        this.task = task;
+        this.deadline = deadline;
+        this.period = period;
+        this.inline = inline;
+    }
+
+    /**
+     * 取消定时任务,O(1);已经开始执行的这一次不会被打断,周期任务不会再安排下一次
+     */
+    public boolean cancel() {
+        for (int s; (s = state.get()) != CANCELLED;) {
+            if (state.compareAndSet(s, CANCELLED)) {
+                task = null;
+                // 还在时间轮中,交给时间轮线程摘除
+                if (s == PENDING)
+                    wheel.cancelled.offer(this);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    /**
+     * 到期之后在工作线程中执行;周期任务执行完之后,计算下一次的到期时间,重新放入时间轮
+     * 一次性任务抛出的异常和普通任务一样交给runWorker();周期任务抛出异常时取消后续的执行,
+     * 异常交给任务失败处理器,不抛给runWorker(),否则没有设置处理器时每个周期都会销毁并新建一个工作线程
+     * Error仍然抛出,和任务失败处理器的语义一致
+     */
+    public void run() {
+        Runnable r = task;
+        if (r == null)
+            return;
+        try {
+            r.run();
+        } catch (Throwable ex) {
+            if (period == 0L)
+                throw ex;
+            cancel();
+            if (ex instanceof Error)
+                throw (Error) ex;
+            reportTaskFailure(r, ex);
+            return;
+        }
+        if (period != 0L && state.compareAndSet(EXPIRED, PENDING) && isRunning(ctl.get())) {
+            deadline = (period > 0L) ? deadline + period : System.nanoTime() - period;
+            wheel.add(this);
+        }
+    }
+}
+
+/**
+ * 分层时间轮,只有时间轮线程会修改槽
+ */
+final class TimerWheel implements Runnable {
+    static final int LEVELS = 4;
+    static final int SLOT_BITS = 8;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int MASK = SLOTS - 1;
+
+    /**
+     * 一个槽,双向链表的头尾
+     */
+    final class Slot {
+        Timeout head, tail;
+
+        void add(Timeout t) {
+            t.slot = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null)
+                head = t;
+            else
+                tail.next = t;
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null)
+                head = t.next;
+            else
+                t.prev.next = t.next;
+            if (t.next == null)
+                tail = t.prev;
+            else
+                t.next.prev = t.prev;
+            t.prev = t.next = null;
+            t.slot = null;
+        }
+
+        // 取出整个链表,槽变为空
+        Timeout clear() {
+            Timeout h = head;
+            head = tail = null;
+            return h;
+        }
+    }
+
+    final Slot[][] wheel = new Slot[LEVELS][SLOTS];
+    // 新提交的定时任务和被取消的定时任务,由时间轮线程在每个tick开始时处理
+    final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    final long startNanos = System.nanoTime();
+    final Thread thread;
+    // 时间轮当前的tick,只有时间轮线程访问
+    long currentTick;
+
+    TimerWheel() {
+        for (int l = 0; l < LEVELS; l++)
+            for (int s = 0; s < SLOTS; s++)
+                wheel[l][s] = new Slot();
+        thread = new Thread(this, "pool-timer-wheel");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void add(Timeout t) {
+        pending.offer(t);
+    }
+
+    public void run() {
+        try {
+            while (runStateLessThan(ctl.get(), STOP)) {
+                // 等到下一个tick
+                long wakeAt = startNanos + (currentTick + 1) * TICK_NANOS;
+                for (long d; (d = wakeAt - System.nanoTime()) > 0L;) {
+                    LockSupport.parkNanos(this, d);
+                    if (Thread.interrupted() || runStateAtLeast(ctl.get(), STOP))
+                        return;
+                }
+                currentTick++;
+                processCancelled();
+                transferPending();
+                // 第0层转完一圈时,逐层降级:先降级高层,再降级低层
+                for (int l = 1; l < LEVELS; l++) {
+                    if ((currentTick & ((1L << (SLOT_BITS * l)) - 1)) != 0)
+                        break;
+                    cascade(l);
+                }
+                expire(wheel[0][(int) (currentTick & MASK)]);
+            }
+        } finally {
+            // 线程池关闭,取消全部还没有到期的定时任务
+            for (Timeout t; (t = pending.poll()) != null;)
+                t.cancel();
+            for (Slot[] level : wheel)
+                for (Slot s : level)
+                    for (Timeout t = s.clear(); t != null; t = t.next)
+                        t.cancel();
+        }
+    }
+
+    void processCancelled() {
+        for (Timeout t; (t = cancelled.poll()) != null;) {
+            if (t.slot != null)
+                t.slot.remove(t);
+        }
+    }
+
+    void transferPending() {
+        for (Timeout t; (t = pending.poll()) != null;) {
+            if (t.state.get() == Timeout.PENDING)
+                place(t);
+        }
+    }
+
+    /**
+     * 根据到期的tick和当前tick的距离,决定放在哪一层的哪个槽
+     */
+    void place(Timeout t) {
+        long deadlineTick = Math.max(currentTick, (t.deadline - startNanos + TICK_NANOS - 1) / TICK_NANOS);
+        long delta = deadlineTick - currentTick;
+        // 已经到期或者在当前tick到期,放到下一个tick执行
+        if (delta == 0L)
+            deadlineTick = currentTick + 1;
+        for (int l = 0; l < LEVELS; l++) {
+            if (delta < (1L << (SLOT_BITS * (l + 1)))) {
+                wheel[l][(int) ((deadlineTick >>> (SLOT_BITS * l)) & MASK)].add(t);
+                return;
+            }
+        }
+        // 超过了时间轮能表示的范围,先放在最高层最远的槽中,降级时再重新计算
+        int top = LEVELS - 1;
+        wheel[top][(int) (((currentTick >>> (SLOT_BITS * top)) - 1) & MASK)].add(t);
+    }
+
+    /**
+     * 把第level层当前槽中的定时任务重新分配到低层
+     */
+    void cascade(int level) {
+        Slot s = wheel[level][(int) ((currentTick >>> (SLOT_BITS * level)) & MASK)];
+        for (Timeout t = s.clear(), next; t != null; t = next) {
+            next = t.next;
+            t.prev = t.next = null;
+            t.slot = null;
+            place(t);
+        }
+    }
+
+    /**
+     * 第0层当前槽中的定时任务到期,交给线程池执行
+     */
+    void expire(Slot s) {
+        for (Timeout t = s.clear(), next; t != null; t = next) {
+            next = t.next;
+            t.prev = t.next = null;
+            t.slot = null;
+            // 放入第0层时的到期时间可能被截断过(超出范围的任务),没有真正到期的重新放回去
+            if (t.deadline - System.nanoTime() > TICK_NANOS) {
+                place(t);
+                continue;
+            }
+            if (t.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                try {
+                    if (t.inline)
+                        t.run();
+                    else
+                        handOff(t);
+                } catch (Throwable ex) {
+                    // 直接执行的动作抛出的异常,时间轮线程不能因此退出
+                    Thread th = Thread.currentThread();
+                    th.getUncaughtExceptionHandler().uncaughtException(th, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * 把到期的定时任务交给工作线程,不阻塞,也不调用拒绝策略
+     */
+    void handOff(Timeout t) {
+        int r = tryEnqueue(t);
+        if (r == ACCEPTED)
+            return;
+        if (r == NOT_RUNNING) {
+            t.cancel();
+            return;
+        }
+        // 线程池饱和:周期任务跳过这一次,一次性任务推迟一个tick
+        deferredTimeouts.increment();
+        long next;
+        if (t.period > 0L)
+            next = t.deadline + t.period;
+        else if (t.period < 0L)
+            next = System.nanoTime() - t.period;
+        else
+            next = System.nanoTime() + TICK_NANOS;
+        // 和cancel()竞争,取消成功的一方赢
+        if (t.state.compareAndSet(Timeout.EXPIRED, Timeout.PENDING)) {
+            t.deadline = next;
+            place(t);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * 空闲工作线程先自旋,再停车
+ * getTask()中workQueue.take()阻塞的工作线程,要等提交任务的线程unpark之后才能醒来,每个任务都要经历一次完整的park/unpark,
+ * 对延迟敏感的线程池来说,execute()到task.run()之间会多出几十微秒
+ * 开启之后,工作线程阻塞之前,先自旋若干次非阻塞地取任务(poll()),前半段用Thread.onSpinWait(),后半段用Thread.yield()让出CPU;
+ * 自旋期间提交的任务不需要unpark,几微秒内就能被取走
+ * 自旋会占用CPU,所以同一时刻最多只有maxSpinners个"热"线程在自旋,其他空闲线程直接停车
+ */
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 每次空闲时最多自旋的次数,0表示不自旋,和原来一样直接阻塞
+private volatile int idleSpins;
+// 同一时刻最多自旋的工作线程数
+private volatile int maxSpinners;
+// 当前正在自旋的工作线程数
+private final AtomicInteger spinners = new AtomicInteger();
+
+/**
+ * 设置空闲工作线程的自旋策略
+ * idleSpins:每次空闲时最多自旋的次数,0表示关闭自旋
+ * maxSpinners:同一时刻最多自旋的工作线程数
+ */
+public void setIdleSpin(int idleSpins, int maxSpinners) {
+    if (idleSpins < 0 || maxSpinners < 0)
+        throw new IllegalArgumentException();
+    this.idleSpins = idleSpins;
+    this.maxSpinners = maxSpinners;
+}
+
+/**
+ * getTask()阻塞取任务之前调用,自旋期间取到任务就返回,否则返回null,由调用方阻塞等待
+ * 抢不到自旋名额,或者当前线程被打断了(例如shutdown()),都直接返回null,让调用方进入可以响应打断的阻塞方法
+ */
+private Runnable spinForTask(Worker w) {
+    int spins = idleSpins;
+    if (spins == 0)
+        return null;
+    // 抢一个自旋名额
+    for (int n;;) {
+        if ((n = spinners.get()) >= maxSpinners)
+            return null;
+        if (spinners.compareAndSet(n, n + 1))
+            break;
+    }
+    try {
+        Thread t = Thread.currentThread();
+        for (int i = 0; i < spins; i++) {
+            if (t.isInterrupted())
+                return null;
+            Runnable r = workStealing ? findTask(w) : workQueue.poll();
+            if (r != null)
+                return r;
+            // 前半段忙等,后半段让出CPU,避免自旋线程比真正干活的线程还多时抢占CPU
+            if (i < (spins >>> 1))
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+        return null;
+    } finally {
+        spinners.decrementAndGet();
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * 根据排队时间自适应调整corePoolSize/maximumPoolSize
+ * 原来线程池只有在execute()中workQueue.offer()失败时才会扩容到核心线程数以上,只有getTask()中poll()超时才会缩容;
+ * 所以工作队列是一个很大的有界队列时,工作线程数永远不会超过corePoolSize,即使排队时间已经超过了业务能接受的范围
+ * 开启之后,一个后台线程每隔samplePeriod采样一次:排队时间(p99),利用率(正在执行任务的线程/工作线程数),吞吐量(完成的任务数)
+ * 然后用爬山法调整核心线程数:
+ * 1. 排队时间超过目标值,且利用率很高 -> 增加核心线程数,说明线程不够用
+ * 2. 排队时间低于目标值的一半,且利用率很低 -> 减少核心线程数,说明线程有富余
+ * 3. 增加线程数之后吞吐量没有提升 -> 撤回这次调整,说明瓶颈不在线程数上(例如下游已经饱和),继续加线程只会更糟
+ * 防止震荡:扩容和缩容的阈值之间留有区间(目标值~目标值的一半);每次调整之后冷却若干个采样周期;
+ * 撤回之后,冷却时间加倍,不会马上在同一个位置反复尝试
+ * maximumPoolSize只在扩容需要时临时调大,撤回时恢复到扩容之前的值,缩容时收回到用户配置的值,不会一直停留在探测时的高位
+ * 每次调整都会记录下来,通过getSizingDecisions()查看
+ * 依赖运行指标(见enableMetrics()),开启时会一并开启运行指标
+ */
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 自适应调整线程数的控制器,为null时表示没有开启
+private volatile AdaptiveSizer adaptiveSizer;
+
+/**
+ * 开启自适应调整线程数
+ * targetQueueWait:排队时间p99的目标值
+ * minCore,maxCore:核心线程数的调整范围
+ * samplePeriod:采样周期
+ */
+public void enableAdaptiveSizing(long targetQueueWait, int minCore, int maxCore,
+                                 long samplePeriod, TimeUnit unit) {
+    if (targetQueueWait <= 0 || samplePeriod <= 0 ||
+        minCore < 0 || maxCore < minCore || maxCore <= 0)
+        throw new IllegalArgumentException();
+    enableMetrics();
+    final ReentrantLock mainLock = this.mainLock;
+    mainLock.lock();
+    try {
+        if (adaptiveSizer != null || !isRunning(ctl.get()))
+            throw new IllegalStateException();
+        AdaptiveSizer s = new AdaptiveSizer(unit.toNanos(targetQueueWait), minCore, maxCore,
+                                            unit.toNanos(samplePeriod));
+        // 控制器使用独立的守护线程,不占用工作线程,也不计入ctl的工作线程数
+        Thread t = new Thread(s, "pool-adaptive-sizer");
+        t.setDaemon(true);
+        s.thread = t;
+        adaptiveSizer = s;
+        t.start();
+    } finally {
+        mainLock.unlock();
+    }
+}
+
+/**
+ * 控制器最近的调整记录,从旧到新
+ */
+public List<SizingDecision> getSizingDecisions() {
+    AdaptiveSizer s = adaptiveSizer;
+    return (s == null) ? Collections.<SizingDecision>emptyList() : s.decisions();
+}
+
+/**
+ * 线程池关闭时停止控制器,在shutdown()/shutdownNow()中调用
+ */
+private void stopAdaptiveSizer() {
+    AdaptiveSizer s = adaptiveSizer;
+    if (s != null)
+        s.thread.interrupt();
+}
+
+/**
+ * 控制器的一次调整记录
+ */
+public static final class SizingDecision {
+    public final long timestampNanos;
+    public final int oldCore, newCore;
+    public final int oldMax, newMax;
+    // 调整时采样到的排队时间p99(纳秒),利用率,吞吐量(每秒完成的任务数)
+    public final long queueWaitP99;
+    public final double utilisation;
+    public final double throughput;
+    // 调整的原因:GROW,SHRINK,REVERT
+    public final String reason;
+
+    SizingDecision(long timestampNanos, int oldCore, int newCore, int oldMax, int newMax,
+                   long queueWaitP99, double utilisation, double throughput, String reason) {
+        this.timestampNanos = timestampNanos;
+        this.oldCore = oldCore;
+        this.newCore = newCore;
+        this.oldMax = oldMax;
+        this.newMax = newMax;
+        this.queueWaitP99 = queueWaitP99;
+        this.utilisation = utilisation;
+        this.throughput = throughput;
+        this.reason = reason;
+    }
+
+    public String toString() {
+        return reason + " core " + oldCore + "->" + newCore + ", max " + oldMax + "->" + newMax +
+            ", queueWaitP99=" + queueWaitP99 + "ns, utilisation=" + utilisation +
+            ", throughput=" + throughput + "/s";
+    }
+}
+
+/**
+ * 爬山法控制器
+ */
+final class AdaptiveSizer implements Runnable {
+    // 扩容之后吞吐量至少要提升这个比例,才认为这次扩容有效
+    static final double MIN_GAIN = 0.05;
+    // 利用率高于这个值才扩容,低于SHRINK_UTILISATION才缩容
+    static final double GROW_UTILISATION = 0.85;
+    static final double SHRINK_UTILISATION = 0.5;
+    // 每次调整之后的冷却周期数,以及撤回之后冷却周期数的上限
+    static final int BASE_COOLDOWN = 2;
+    static final int MAX_COOLDOWN = 32;
+    // 最多保留的调整记录数
+    static final int HISTORY = 64;
+
+    final long targetNanos;
+    final int minCore, maxCore;
+    final long periodNanos;
+    volatile Thread thread;
+
+    // 以下字段只在控制器线程中读写
+    PoolMetricsSnapshot last;
+    long lastCompleted;
+    int cooldown;
+    int cooldownAfterRevert = BASE_COOLDOWN;
+    // 上一次扩容之前的核心线程数,最大线程数和吞吐量,下一次采样时用来判断扩容是否有效;-1表示上一次调整不是扩容
+    int coreBeforeGrow = -1;
+    int maxBeforeGrow;
+    double throughputBeforeGrow;
+    // 用户配置的maximumPoolSize,缩容时最大线程数收回到这个值;控制器最后一次设置的maximumPoolSize,
+    // 两者不一致说明用户在这期间调用过setMaximumPoolSize(),以用户设置的值为准
+    int configuredMax = maximumPoolSize;
+    int lastSetMax = maximumPoolSize;
+
+    // 调整记录,环形缓冲区
+    private final ArrayDeque<SizingDecision> history = new ArrayDeque<SizingDecision>();
+
+    AdaptiveSizer(long targetNanos, int minCore, int maxCore, long periodNanos) {
+        this.targetNanos = targetNanos;
+        this.minCore = minCore;
+        this.maxCore = maxCore;
+        this.periodNanos = periodNanos;
+    }
+
+    public void run() {
+        last = getMetricsSnapshot();
+        lastCompleted = getCompletedTaskCount();
+        // 线程池关闭或者被打断时退出
+        while (isRunning(ctl.get()) && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(this, periodNanos);
+            if (!isRunning(ctl.get()) || Thread.currentThread().isInterrupted())
+                break;
+            sample();
+        }
+    }
+
+    void sample() {
+        PoolMetricsSnapshot now = getMetricsSnapshot();
+        long completed = getCompletedTaskCount();
+        long elapsed = now.getTimestampNanos() - last.getTimestampNanos();
+        // 只看这个采样周期内的数据
+        long p99 = now.queueWaitPercentileSince(last, 0.99);
+        double throughput = (completed - lastCompleted) * 1e9 / Math.max(1L, elapsed);
+        double utilisation = utilisation();
+        last = now;
+        lastCompleted = completed;
+
+        int core = corePoolSize;
+        int max = maximumPoolSize;
+        if (max != lastSetMax)
+            configuredMax = lastSetMax = max;
+        // 上一次是扩容,先检查扩容的效果,没有效果就撤回,最大线程数也恢复到扩容之前的值
+        if (coreBeforeGrow >= 0) {
+            int before = coreBeforeGrow;
+            coreBeforeGrow = -1;
+            if (throughput < throughputBeforeGrow * (1.0 + MIN_GAIN)) {
+                resize(before, Math.max(before, maxBeforeGrow), p99, utilisation, throughput, "REVERT");
+                cooldownAfterRevert = Math.min(MAX_COOLDOWN, cooldownAfterRevert * 2);
+                cooldown = cooldownAfterRevert;
+                return;
+            }
+            // 扩容有效,撤回的冷却时间恢复
+            cooldownAfterRevert = BASE_COOLDOWN;
+        }
+        if (cooldown > 0) {
+            cooldown--;
+            return;
+        }
+        if (p99 > targetNanos && utilisation >= GROW_UTILISATION && core < maxCore) {
+            // 每次增加当前核心线程数的1/4,至少1个
+            int next = Math.min(maxCore, core + Math.max(1, core >>> 2));
+            coreBeforeGrow = core;
+            maxBeforeGrow = max;
+            throughputBeforeGrow = throughput;
+            resize(next, Math.max(max, next), p99, utilisation, throughput, "GROW");
+            cooldown = BASE_COOLDOWN;
+        } else if (p99 < (targetNanos >>> 1) && utilisation < SHRINK_UTILISATION && core > minCore) {
+            // 缩容每次只减少1/8,比扩容慢,避免流量回来时又要马上扩容
+            int next = Math.max(minCore, core - Math.max(1, core >>> 3));
+            // 最大线程数收回到用户配置的值,但不能小于新的核心线程数
+            resize(next, Math.max(next, Math.min(max, configuredMax)), p99, utilisation, throughput, "SHRINK");
+            cooldown = BASE_COOLDOWN;
+        }
+    }
+
+    /**
+     * 正在执行任务的工作线程占全部工作线程的比例,w.isLocked()为true表示正在执行任务
+     * workers是并发集合,不需要加mainLock
+     */
+    double utilisation() {
+        int total = 0, active = 0;
+        for (Worker w : workers) {
+            total++;
+            if (w.isLocked())
+                active++;
+        }
+        return (total == 0) ? 0.0 : (double) active / total;
+    }
+
+    /**
+     * 调整核心线程数和最大线程数,调用方保证newMax >= newCore
+     * 最大线程数调大时先调它,调小时最后调它,保证任何时刻都满足core <= max;多出的非核心线程由keepAliveTime回收
+     */
+    void resize(int newCore, int newMax, long p99, double utilisation, double throughput, String reason) {
+        int oldCore = corePoolSize, oldMax = maximumPoolSize;
+        if (newMax > oldMax)
+            setMaximumPoolSize(newMax);
+        setCorePoolSize(newCore);
+        if (newMax < oldMax)
+            setMaximumPoolSize(newMax);
+        lastSetMax = newMax;
+        // setCorePoolSize()只在工作队列不为空时才会预先创建线程,这里保证新的核心线程马上能分担排队的任务
+        if (newCore > oldCore)
+            prestartAllCoreThreads();
+        record(new SizingDecision(System.nanoTime(), oldCore, newCore, oldMax, newMax,
+                                  p99, utilisation, throughput, reason));
+    }
+
+    synchronized void record(SizingDecision d) {
+        if (history.size() == HISTORY)
+            history.pollFirst();
+        history.addLast(d);
+    }
+
+    synchronized List<SizingDecision> decisions() {
+        return new ArrayList<SizingDecision>(history);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * 虚拟线程模式:Worker的工作线程使用虚拟线程(JDK21+),而不是线程工厂创建的平台线程
+ * 对于大量阻塞在socket上的I/O任务,平台线程模式只能在"巨大的线程池"和"很长的工作队列"之间取舍;
+ * 虚拟线程阻塞时会让出载体线程,所以可以用一个很大的并发上限maxConcurrency代替平台线程数的上限maximumPoolSize
+ * 注意:除了工作线程的创建方式和上限之外,其他流程完全不变:
+ * 工作线程仍然是Worker,仍然计入ctl的工作线程数,execute()的核心线程->工作队列->非核心线程->拒绝策略的顺序,
+ * 以及shutdown()/shutdownNow()/tryTerminate()的关闭流程都和平台线程模式一样
+ */
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 是否使用虚拟线程作为工作线程,构造时确定,之后不能修改
+private final boolean virtualWorkers;
+// 虚拟线程模式下的最大并发数,即最多同时存在多少个工作线程,代替maximumPoolSize
+private volatile int maxConcurrency;
+// 虚拟线程的编号,用来给虚拟线程命名
+private final AtomicInteger virtualThreadSeq = new AtomicInteger();
+
+/**
+ * 虚拟线程模式的构造方法,参数检查和原来的构造方法一样
+ * virtualWorkers=true时,maximumPoolSize作为初始的最大并发数maxConcurrency;threadFactory不会被用来创建工作线程,但仍然不能为null
+ */
+public ThreadPoolExecutor(int corePoolSize,
+                          int maximumPoolSize,
+                          long keepAliveTime,
+                          TimeUnit unit,
+                          BlockingQueue<Runnable> workQueue,
+                          ThreadFactory threadFactory,
+                          RejectedExecutionHandler handler,
+                          boolean virtualWorkers) {
+    this(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler,
+         false, 0, virtualWorkers);
+}
+
+/**
+ * 创建一个虚拟线程模式的线程池:没有核心线程,工作队列是SynchronousQueue,
+ * 所以每个任务都会交给一个空闲的虚拟线程,没有空闲的就新建一个,直到达到maxConcurrency,之后调用拒绝策略
+ * 空闲的虚拟线程在keepAliveTime之后退出
+ */
+public static ThreadPoolExecutor newVirtualThreadPool(int maxConcurrency,
+                                                      long keepAliveTime, TimeUnit unit,
+                                                      RejectedExecutionHandler handler) {
+    return new ThreadPoolExecutor(0, maxConcurrency, keepAliveTime, unit,
+                                  new SynchronousQueue<Runnable>(),
+                                  Executors.defaultThreadFactory(), handler, true);
+}
+
+/**
+ * 工作线程数的上限:平台线程模式下是maximumPoolSize,虚拟线程模式下是maxConcurrency
+ * addWorker(),addWorkers()和getTask()中原来直接使用maximumPoolSize的地方,都换成了这个方法
+ */
+private int maxWorkers() {
+    return virtualWorkers ? maxConcurrency : maximumPoolSize;
+}
+
+/**
+ * 设置虚拟线程模式下的最大并发数,调小时和setMaximumPoolSize()一样,打断空闲的工作线程,让多余的工作线程在getTask()中退出
+ */
+public void setMaxConcurrency(int maxConcurrency) {
+    if (!virtualWorkers)
+        throw new IllegalStateException();
+    if (maxConcurrency <= 0 || maxConcurrency < corePoolSize)
+        throw new IllegalArgumentException();
+    this.maxConcurrency = maxConcurrency;
+    if (workerCountOf(ctl.get()) > maxConcurrency)
+        interruptIdleWorkers();
+}
+
+public int getMaxConcurrency() {
+    return maxConcurrency;
+}
+
+/**
+ * 为Worker创建工作线程,Worker的构造方法中调用:this.thread = newWorkerThread(this)
+ * 原来是getThreadFactory().newThread(this)
+ */
+private Thread newWorkerThread(Worker w) {
+    if (virtualWorkers)
+        return Thread.ofVirtual()
+            .name("pool-vthread-" + virtualThreadSeq.incrementAndGet())
+            .unstarted(w);
+    return getThreadFactory().newThread(w);
+}
@@ -0,0 +1,105 @@
+/**
+ * 不关心结果的轻量任务
+ * submit(Runnable)会把任务包装成FutureTask:run()中runner的CAS,set()中state的两次修改,outcome字段,finishCompletion()遍历等待栈;
+ * 没有人调用get()时,这些都是白白的开销,每秒提交几百万个任务时,分配和CAS都很可观
+ * LightweightTask只保留取消和异常报告:
+ * 1. 只有一个state字段,执行前后各CAS一次,没有runner字段(正在执行时state就是执行任务的线程),没有outcome,也没有等待栈
+ * 2. 任务抛出的异常交给线程池的任务失败处理器(见setTaskFailureHandler()),没有设置时交给线程的UncaughtExceptionHandler,
+ *    和FutureTask一样不会导致工作线程退出
+ * 3. cancel()可以取消还没有开始执行的任务,也可以打断正在执行的任务;开启取消即清理时,取消的任务会被计入清理,见purgeCancelled()
+ */
+
+/**
+ * 提交一个轻量任务,返回的LightweightTask可以用来取消
+ */
+public LightweightTask submitLight(Runnable task) {
+    if (task == null)
+        throw new NullPointerException();
+    LightweightTask t = new LightweightTask(task);
+    execute(t);
+    return t;
+}
+
+public final class LightweightTask implements Runnable {
+    // state的取值:null表示还没有开始执行;Thread表示正在执行,值就是执行任务的线程;其余是下面几个终态和临界状态
+    static final Object DONE         = new Object();
+    static final Object CANCELLED    = new Object();
+    // cancel(true)正在打断执行任务的线程,很快会变成CANCELLED
+    static final Object INTERRUPTING = new Object();
+
+    // 执行完或者被取消之后置为null,让任务引用的对象尽快被回收
+    private Runnable task;
+    private volatile Object state;
+    // 运行指标记录的入队时间,见markEnqueued()
+    long enqueueNanos;
+
+    LightweightTask(Runnable task) {
+        this.task = task;
+    }
+
+    public void run() {
+        // 只有一次CAS:没有开始执行,并且没有被取消
+        if (state != null || !STATE.compareAndSet(this, null, Thread.currentThread()))
+            return;
+        Runnable r = task;
+        try {
+            r.run();
+        } catch (Throwable ex) {
+            reportTaskFailure(r, ex);
+        } finally {
+            task = null;
+            // 被cancel(true)抢先时,等打断完成再返回,打断只能落在这个任务上,不能落到工作线程的下一个任务上
+            if (!STATE.compareAndSet(this, Thread.currentThread(), DONE)) {
+                while (state == INTERRUPTING)
+                    Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 取消任务,任务已经执行完或者已经被取消时返回false
+     * mayInterruptIfRunning=true时,打断正在执行任务的线程
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        for (Object s;;) {
+            s = state;
+            if (s == null) {
+                // 还没有开始执行
+                if (STATE.compareAndSet(this, null, CANCELLED)) {
+                    task = null;
+                    // 任务还在队列中,计入取消即清理
+                    if (purgeOnCancel)
+                        onQueuedTaskCancelled();
+                    return true;
+                }
+            } else if (s instanceof Thread) {
+                // 正在执行
+                if (!mayInterruptIfRunning)
+                    return false;
+                if (STATE.compareAndSet(this, s, INTERRUPTING)) {
+                    try {
+                        ((Thread) s).interrupt();
+                    } finally {
+                        state = CANCELLED;
+                    }
+                    return true;
+                }
+            } else
+                return false;
+        }
+    }
+
+    public boolean isCancelled() {
+        Object s = state;
+        return s == CANCELLED || s == INTERRUPTING;
+    }
+
+    public boolean isDone() {
+        Object s = state;
+        return s != null && !(s instanceof Thread);
+    }
+}
+
+@SuppressWarnings("rawtypes")
+private static final AtomicReferenceFieldUpdater<ThreadPoolExecutor.LightweightTask, Object> STATE =
+    AtomicReferenceFieldUpdater.newUpdater(ThreadPoolExecutor.LightweightTask.class, Object.class, "state");
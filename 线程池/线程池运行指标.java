@@ -0,0 +1,279 @@
+/**
+ * 线程池内置的运行指标
+ * 原来只有beforeExecute()/afterExecute()两个空的扩展点,和completedTaskCount,largestPoolSize两个汇总值,
+ * 无法区分任务的延迟是花在排队上,还是花在执行上
+ * 开启之后,记录:
+ * 1. 排队时间:任务入队(execute()) -> 出队(runWorker()取到任务),只记录自己带有入队时间字段的任务:
+ *    submit()创建的FutureTask和LightweightTask;用户直接execute()的Runnable没有地方存放入队时间,不记录
+ * 2. 执行时间:task.run()的耗时
+ * 3. 被拒绝的任务数
+ * 4. 创建和退出的工作线程数,两次快照相减再除以时间差,就是创建/退出的速率
+ * 排队时间和执行时间记录在无锁的对数分桶直方图中(HDR直方图的思路),读取快照时不需要加mainLock
+ */
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 运行指标,为null时表示没有开启,runWorker()中只多一次volatile读
+private volatile PoolMetrics metrics;
+
+// ---------------------------- FutureTask中新增的字段 ----------------------------
+
+// 入队时间,0表示没有记录;只由提交线程在入队之前写,工作线程在出队之后读,队列的入队和出队保证了可见性
+long enqueueNanos;
+
+/**
+ * 开启运行指标,重复调用不会重置已有的指标
+ */
+public void enableMetrics() {
+    if (metrics == null) {
+        synchronized (this) {
+            if (metrics == null)
+                metrics = new PoolMetrics();
+        }
+    }
+}
+
+/**
+ * 读取运行指标的快照,没有开启时返回null
+ * 快照中的各项指标不是在同一时刻读取的,只是近似值
+ */
+public PoolMetricsSnapshot getMetricsSnapshot() {
+    PoolMetrics m = metrics;
+    return (m == null) ? null : m.snapshot();
+}
+
+/**
+ * 任务入队的统一入口,execute()和executeAll()都通过它入队
+ * 开启运行指标时,在入队之前记录入队时间,runWorker()取到任务之后读取;队列中存放的始终是用户提交的原始任务,
+ * 所以PriorityBlockingQueue这类按Comparable排序的队列,getQueue(),拒绝策略看到的都和原来一样
+ * 只看是否开启了运行指标,不看是否正在录制JFR事件,开始录制不会改变入队的流程;TaskExecution事件复用这里记录的入队时间
+ */
+private boolean offerTask(Runnable command) {
+    if (metrics != null)
+        markEnqueued(command);
+    if (!enqueue(command)) {
+        // 取消即清理:队列满了,但是其中有被取消的任务,先清理一遍再重试一次,见purgeCancelled()
+        if (!purgeOnCancel || cancelledInQueue.get() == 0 ||
+            purgeCancelled() == 0 || !enqueue(command)) {
+            takeEnqueueTime(command);
+            return false;
+        }
+    }
+    // 入队成功之后才注册取消回调,入队失败的任务会被拒绝,不需要清理
+    trackCancellation(command);
+    return true;
+}
+
+/**
+ * 记录任务的入队时间,必须在入队之前调用,入队之后任务随时可能被工作线程取走
+ * 只记录在任务自己的字段中,不用全局的按对象身份索引的表:同一个Runnable实例重复入队时后一次会覆盖前一次,
+ * 被DiscardOldestPolicy或者getQueue().poll()之类绕过线程池移走的任务,表中的记录也永远不会被删除;
+ * 其他类型的任务不记录,入队和出队没有额外的开销
+ */
+private void markEnqueued(Runnable r) {
+    long now = System.nanoTime();
+    // 0表示没有记录,刚好是0的时间戳往后挪1纳秒
+    if (now == 0L)
+        now = 1L;
+    if (r instanceof FutureTask)
+        ((FutureTask<?>) r).enqueueNanos = now;
+    else if (r instanceof LightweightTask)
+        ((LightweightTask) r).enqueueNanos = now;
+}
+
+/**
+ * 取出并清除任务的入队时间,没有记录时返回0
+ * 除了runWorker()之外,入队失败和被拒绝时也要调用:这个任务随后可能作为firstTask直接执行,或者被重新提交,不能带着过时的入队时间
+ */
+private long takeEnqueueTime(Runnable r) {
+    if (r instanceof FutureTask) {
+        FutureTask<?> f = (FutureTask<?>) r;
+        long t = f.enqueueNanos;
+        f.enqueueNanos = 0L;
+        return t;
+    }
+    if (r instanceof LightweightTask) {
+        LightweightTask l = (LightweightTask) r;
+        long t = l.enqueueNanos;
+        l.enqueueNanos = 0L;
+        return t;
+    }
+    return 0L;
+}
+
+private boolean enqueue(Runnable command) {
+    if (workStealing)
+        return offerStealing(command);
+    if (!workQueue.offer(command))
+        return false;
+    // 集中回收模式下空闲线程没有阻塞在workQueue上,需要从空闲栈唤醒一个
+    if (idleReaper)
+        signalIdleWorker();
+    return true;
+}
+
+/**
+ * 调用拒绝策略,顺便统计被拒绝的任务数
+ */
+final void reject(Runnable command) {
+    // 被拒绝的任务不会再出队
+    takeEnqueueTime(command);
+    PoolMetrics m = metrics;
+    if (m != null)
+        m.rejected.increment();
+    if (TaskRejectedEvent.TYPE.isEnabled()) {
+        TaskRejectedEvent e = new TaskRejectedEvent();
+        e.taskClass = command.getClass();
+        e.poolSize = workerCountOf(ctl.get());
+        e.queueSize = workQueue.size();
+        e.shutdown = !isRunning(ctl.get());
+        e.commit();
+    }
+    handler.rejectedExecution(command, this);
+}
+
+/**
+ * 线程池的各项运行指标,所有的写操作都是无锁的
+ */
+static final class PoolMetrics {
+    final LatencyHistogram queueWait = new LatencyHistogram();
+    final LatencyHistogram runTime = new LatencyHistogram();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder workersCreated = new LongAdder();
+    final LongAdder workersRetired = new LongAdder();
+
+    PoolMetricsSnapshot snapshot() {
+        return new PoolMetricsSnapshot(System.nanoTime(),
+                                       queueWait.snapshot(), runTime.snapshot(),
+                                       rejected.sum(),
+                                       workersCreated.sum(), workersRetired.sum());
+    }
+}
+
+/**
+ * 无锁的对数分桶直方图,单位纳秒
+ * 每个2的幂次区间[2^e, 2^(e+1))再线性地分成8个子桶,所以相对误差不超过12.5%;
+ * 小于8ns的值各占一个桶,共(64-2)*8个桶,覆盖long的全部范围
+ * 记录一个值只需要一次AtomicLongArray的累加,不加锁,不分配对象
+ */
+static final class LatencyHistogram {
+    // 每个2的幂次区间分成2^SUB_BITS个子桶
+    static final int SUB_BITS = 3;
+    static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        if (nanos < 0L)
+            nanos = 0L;
+        counts.getAndIncrement(indexOf(nanos));
+    }
+
+    static int indexOf(long v) {
+        if (v < SUB_COUNT)
+            return (int) v;
+        // e:最高位的位置,v落在[2^e, 2^(e+1))区间中
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (e - SUB_BITS)) & (SUB_COUNT - 1);
+        return (e - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * 桶的上界,快照中计算分位数时使用
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int e = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        long lower = (1L << e) + (sub << (e - SUB_BITS));
+        return lower + (1L << (e - SUB_BITS)) - 1;
+    }
+
+    long[] snapshot() {
+        long[] s = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            s[i] = counts.get(i);
+        return s;
+    }
+}
+
+/**
+ * 运行指标的不可变快照
+ */
+public static final class PoolMetricsSnapshot {
+    private final long timestampNanos;
+    private final long[] queueWait;
+    private final long[] runTime;
+    private final long rejectedCount;
+    private final long workersCreated;
+    private final long workersRetired;
+
+    PoolMetricsSnapshot(long timestampNanos, long[] queueWait, long[] runTime,
+                        long rejectedCount, long workersCreated, long workersRetired) {
+        this.timestampNanos = timestampNanos;
+        this.queueWait = queueWait;
+        this.runTime = runTime;
+        this.rejectedCount = rejectedCount;
+        this.workersCreated = workersCreated;
+        this.workersRetired = workersRetired;
+    }
+
+    /** 快照的时间,System.nanoTime(),两次快照相减计算速率时使用 */
+    public long getTimestampNanos() { return timestampNanos; }
+
+    public long getRejectedCount() { return rejectedCount; }
+
+    public long getWorkersCreated() { return workersCreated; }
+
+    public long getWorkersRetired() { return workersRetired; }
+
+    public long getQueueWaitCount() { return count(queueWait); }
+
+    public long getRunTimeCount() { return count(runTime); }
+
+    /**
+     * 排队时间的分位数(纳秒),q取值[0, 1],例如0.99表示p99
+     */
+    public long queueWaitPercentile(double q) { return percentile(queueWait, q); }
+
+    /**
+     * 执行时间的分位数(纳秒),q取值[0, 1]
+     */
+    public long runTimePercentile(double q) { return percentile(runTime, q); }
+
+    /**
+     * 从earlier快照到当前快照之间,排队时间的分位数(纳秒),即只统计这段时间内出队的任务
+     */
+    public long queueWaitPercentileSince(PoolMetricsSnapshot earlier, double q) {
+        long[] delta = new long[queueWait.length];
+        for (int i = 0; i < delta.length; i++)
+            delta[i] = queueWait[i] - earlier.queueWait[i];
+        return percentile(delta, q);
+    }
+
+    private static long count(long[] buckets) {
+        long n = 0L;
+        for (long c : buckets)
+            n += c;
+        return n;
+    }
+
+    private static long percentile(long[] buckets, double q) {
+        if (q < 0.0 || q > 1.0)
+            throw new IllegalArgumentException();
+        long n = count(buckets);
+        if (n == 0L)
+            return 0L;
+        // 第rank个值所在的桶
+        long rank = Math.max(1L, (long) Math.ceil(q * n));
+        long seen = 0L;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank)
+                return LatencyHistogram.upperBoundOf(i);
+        }
+        return LatencyHistogram.upperBoundOf(buckets.length - 1);
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * 带背压的提交方法
+ * 工作队列满了,addWorker(command,false)也失败时,execute()直接调用拒绝策略,只能选择抛异常或者由提交线程执行(CallerRunsPolicy),
+ * 后者会让网络事件循环线程不可预期地卡住
+ * 这里提供两种背压方式:
+ * 1. submit(task, timeout, unit):阻塞等待工作队列的空位,超时返回false
+ * 2. trySubmit(task):不阻塞,线程池饱和时任务不会被接收,返回一个就绪信号,有空位时完成,调用方收到信号之后再提交
+ * 空位由消费端通知:getTask()每取出一个任务,或者工作线程空闲下来(对于SynchronousQueue,有空闲线程才有空位),
+ * 都会调用signalSpaceAvailable()唤醒一个等待者,不需要等待者轮询
+ */
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 阻塞在submit(task, timeout)中的提交线程使用的锁和条件
+private final ReentrantLock spaceLock = new ReentrantLock();
+private final Condition spaceAvailable = spaceLock.newCondition();
+// 阻塞在submit(task, timeout)中的提交线程数
+private final AtomicInteger blockedProducers = new AtomicInteger();
+// trySubmit()返回的还没有完成的就绪信号
+private final ConcurrentLinkedQueue<CompletableFuture<Void>> spaceListeners =
+    new ConcurrentLinkedQueue<CompletableFuture<Void>>();
+
+/**
+ * 提交任务,线程池饱和时阻塞等待空位,最多等待timeout
+ * 返回true表示任务已经被接收;返回false表示等待超时,任务没有被接收
+ * 线程池已经关闭时,和execute()一样调用拒绝策略,然后返回false
+ */
+public boolean submit(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+    if (task == null)
+        throw new NullPointerException();
+    // 截止时间只计算一次,每次重试之前都检查:hasSpace()为true但是tryEnqueue()仍然返回SATURATED时
+    // (例如SynchronousQueue上的空闲线程还在自旋,没有阻塞在take()上,或者工作窃取模式下deque都满了),不会等待,也要按时返回
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (;;) {
+        int r = tryEnqueue(task);
+        if (r == ACCEPTED)
+            return true;
+        if (r == NOT_RUNNING) {
+            reject(task);
+            return false;
+        }
+        long nanos = deadline - System.nanoTime();
+        if (nanos <= 0L)
+            return false;
+        // 先登记为等待者,再加锁检查一次是否有空位,之后才等待;
+        // 消费端是先腾出空位,再看有没有等待者,有的话加锁唤醒,所以检查和等待之间的唤醒不会丢失
+        boolean waited = false;
+        blockedProducers.incrementAndGet();
+        final ReentrantLock spaceLock = this.spaceLock;
+        spaceLock.lockInterruptibly();
+        try {
+            if (!hasSpace() && isRunning(ctl.get())) {
+                spaceAvailable.awaitNanos(nanos);
+                waited = true;
+            }
+        } finally {
+            spaceLock.unlock();
+            blockedProducers.decrementAndGet();
+        }
+        // 看起来有空位但是没有提交成功,让出CPU再重试,不在这里空转
+        if (!waited)
+            Thread.yield();
+    }
+}
+
+/**
+ * 不阻塞地提交任务
+ * 任务被接收时返回null;
+ * 线程池饱和时任务不会被接收,返回一个就绪信号,有空位时完成,调用方收到信号之后重新提交(仍然可能被其他提交者抢先,需要再次处理返回值);
+ * 线程池已经关闭时,返回一个以RejectedExecutionException异常完成的信号,不会调用拒绝策略
+ * 注意:就绪信号在工作线程中完成,依赖它的非Async回调也会在工作线程中执行,所以回调中应该只做把任务重新提交到事件循环这样的轻量操作
+ */
+public CompletableFuture<Void> trySubmit(Runnable task) {
+    if (task == null)
+        throw new NullPointerException();
+    int r = tryEnqueue(task);
+    if (r == ACCEPTED)
+        return null;
+    CompletableFuture<Void> ready = new CompletableFuture<Void>();
+    if (r == NOT_RUNNING) {
+        ready.completeExceptionally(new RejectedExecutionException("Executor is shut down"));
+        return ready;
+    }
+    spaceListeners.offer(ready);
+    // 登记之后再检查一次,和submit(task, timeout)一样,防止登记之前腾出的空位没有通知到
+    if (hasSpace() || !isRunning(ctl.get()))
+        signalSpaceAvailable();
+    return ready;
+}
+
+/**
+ * 是否有空位:工作队列还有容量,有空闲的工作线程,或者工作线程数没有达到上限
+ */
+private boolean hasSpace() {
+    return workQueue.remainingCapacity() > 0 ||
+        idleWorkerCount.get() > 0 ||
+        workerCountOf(ctl.get()) < maxWorkers();
+}
+
+/**
+ * 消费端腾出空位之后调用,唤醒一个阻塞的提交线程,并完成一个就绪信号
+ * 没有等待者时只有两次volatile读,getTask()中每次都调用也没有额外开销
+ */
+private void signalSpaceAvailable() {
+    if (blockedProducers.get() > 0) {
+        final ReentrantLock spaceLock = this.spaceLock;
+        spaceLock.lock();
+        try {
+            spaceAvailable.signal();
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+    if (!spaceListeners.isEmpty()) {
+        CompletableFuture<Void> ready = spaceListeners.poll();
+        if (ready != null) {
+            if (isRunning(ctl.get()))
+                ready.complete(null);
+            else
+                ready.completeExceptionally(new RejectedExecutionException("Executor is shut down"));
+        }
+    }
+}
+
+/**
+ * 线程池关闭时,唤醒全部等待者,在shutdown()/shutdownNow()中调用
+ * 阻塞的提交线程醒来之后重新提交,得到NOT_RUNNING,调用拒绝策略;就绪信号以RejectedExecutionException异常完成
+ */
+private void wakeAllSpaceWaiters() {
+    final ReentrantLock spaceLock = this.spaceLock;
+    spaceLock.lock();
+    try {
+        spaceAvailable.signalAll();
+    } finally {
+        spaceLock.unlock();
+    }
+    for (CompletableFuture<Void> ready; (ready = spaceListeners.poll()) != null;)
+        ready.completeExceptionally(new RejectedExecutionException("Executor is shut down"));
+}
@@ -0,0 +1,98 @@
+/**
+ * 集中回收空闲线程,代替每个非核心线程各自的poll(keepAliveTime)超时
+ * 原来每个非核心线程在getTask()中调用workQueue.poll(keepAliveTime),一个空闲线程就是一个定时停车;
+ * 线程数很多的弹性线程池中,大量的定时器和超时唤醒,以及超时之后timedOut重试循环中ctl上的CAS,开销都不小
+ * 而且阻塞队列的notEmpty条件队列是FIFO的,任务总是交给等待最久的线程,所有空闲线程轮流被唤醒,谁都不会真正空闲到超时,缓存也一直是冷的
+ * 开启之后:
+ * 1. 空闲线程不再定时停车,而是登记到空闲栈(idleWorkers)之后无限期停车,和工作窃取模式共用awaitStealableTask()
+ * 2. 提交任务时从栈顶唤醒一个空闲线程(LIFO),最近空闲的线程最先被复用,它的缓存最热
+ * 3. 栈底是空闲最久的线程,由一个回收线程统一检查:空闲超过keepAliveTime,且工作线程数超过核心线程数,
+ *    就把它从空闲栈中摘下并唤醒,它在getTask()中按超时的流程退出,ctl的减1和原来一样由工作线程自己完成
+ * 整个线程池只有回收线程一个定时停车,而且它只在栈底的线程快要到期时才醒来
+ * 工作队列必须能缓存任务,不支持SynchronousQueue:没有线程阻塞在take()上时,它的offer()总是失败
+ */
+
+// ---------------------------- Worker类中新增的字段 ----------------------------
+
+// 这一次开始空闲的时间,回收线程根据它判断是否空闲超过了keepAliveTime
+volatile long idleSince;
+// 被回收线程选中,唤醒之后按超时的流程退出
+volatile boolean reaped;
+
+// ---------------------------- ThreadPoolExecutor中新增的字段 ----------------------------
+
+// 是否开启集中回收空闲线程
+private volatile boolean idleReaper;
+// 回收线程,为null时表示没有开启
+private volatile Thread idleReaperThread;
+// 回收线程两次检查之间的最短间隔
+private static final long MIN_REAP_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+/**
+ * 开启集中回收空闲线程,开启之后不能关闭
+ */
+public void enableIdleReaper() {
+    if (workQueue instanceof SynchronousQueue)
+        throw new IllegalStateException("idle reaper requires a queue that can hold tasks");
+    final ReentrantLock mainLock = this.mainLock;
+    mainLock.lock();
+    try {
+        if (idleReaperThread != null || !isRunning(ctl.get()))
+            throw new IllegalStateException();
+        // 回收线程使用独立的守护线程,不计入ctl的工作线程数
+        Thread t = new Thread(this::reapIdleWorkers, "pool-idle-reaper");
+        t.setDaemon(true);
+        idleReaperThread = t;
+        // 先开启模式再启动线程;已经阻塞在take()/poll()中的工作线程取到下一个任务之后,也会切换到空闲栈
+        idleReaper = true;
+        t.start();
+    } finally {
+        mainLock.unlock();
+    }
+}
+
+/**
+ * 线程池关闭时停止回收线程,在shutdown()/shutdownNow()中调用
+ * 空闲栈中的线程由关闭流程的interruptIdleWorkers()打断,不需要回收线程处理
+ */
+private void stopIdleReaper() {
+    Thread t = idleReaperThread;
+    if (t != null)
+        t.interrupt();
+}
+
+/**
+ * 回收线程的主循环
+ */
+private void reapIdleWorkers() {
+    while (isRunning(ctl.get()) && !Thread.currentThread().isInterrupted()) {
+        long keepAlive = keepAliveTime;
+        long wait = reapOnce(keepAlive);
+        // keepAliveTime可以是0,至少间隔1毫秒,避免空转
+        LockSupport.parkNanos(this, Math.max(MIN_REAP_INTERVAL, wait > 0L ? wait : keepAlive));
+    }
+}
+
+/**
+ * 从栈底开始回收空闲超过keepAlive的工作线程,返回栈底的线程还要多久到期,没有可以回收的线程时返回0
+ * 栈底的线程空闲最久,遇到第一个没有到期的就停止;重新登记的线程保留了原来的idleSince,栈中的顺序只是近似有序,漏掉的下一轮再回收
+ */
+private long reapOnce(long keepAlive) {
+    int c = ctl.get();
+    // 最多回收的线程数,和getTask()中timed的判断一致
+    int excess = workerCountOf(c) - (allowCoreThreadTimeOut ? 0 : corePoolSize);
+    long now = System.nanoTime();
+    for (Worker w; excess > 0 && (w = idleWorkers.peekLast()) != null;) {
+        long idle = now - w.idleSince;
+        // 作废的节点(工作线程已经自己醒来)不用等到期,直接出栈丢弃
+        if (idle < keepAlive && w.idleState.get() != IDLE_STALE)
+            return keepAlive - idle;
+        // 和signalIdleWorker()竞争同一个工作线程,只有出栈并且认领成功的一方才能唤醒它
+        if (idleWorkers.removeLastOccurrence(w) && claimIdle(w)) {
+            w.reaped = true;
+            LockSupport.unpark(w.thread);
+            excess--;
+        }
+    }
+    return 0L;
+}
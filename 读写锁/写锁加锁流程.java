@@ -29,11 +29,21 @@ protected final boolean tryAcquire(int acquires) {
     //      2. 公平锁执行hasQueuedPredecessors(),判断是否队列中是否有线程排队,若有线程排队,返回true,否则,返回false
     // 若writerShouldBlock()为true,加写锁失败,直接返回false;
     // 若writerShouldBlock()为false,执行CAS操作修改锁资源
+    // 读偏向模式下,当前线程偏向持有读锁时state中看不到,这里和原来持有读锁时一样返回false(读锁不能升级)
+    if (biasedMode && holdsBiasedRead())
+        return false;
     if (writerShouldBlock() ||
         !compareAndSetState(c, c + acquires))
         return false;
     // 修改exclusiveOwnerThread的值
     setExclusiveOwnerThread(current);
+    // 读偏向模式下,撤销偏向,确认没有线程偏向持有读锁之后才算真正拿到写锁,见读锁偏向模式.java
+    // 上一次撤销失败(revokePending)时偏向已经是false,也要重新检查
+    // 还有读线程偏向持有读锁时回滚写锁,返回false,和遇到普通读锁一样由acquire()排队等待,打断和超时照常生效
+    if ((readBias || revokePending) && !revokeBias()) {
+        rollbackWriteLock(current);
+        return false;
+    }
     return true;
 }
 
@@ -0,0 +1,200 @@
+/**
+ * 读偏向模式(BRAVO:Biased Locking for Reader-Writer Locks)
+ * 原来每个读线程加读锁都要CAS同一个state(c + SHARED_UNIT),解锁也要CAS同一个state,
+ * 读多写少的场景下,核数越多,state所在的缓存行在各个核之间来回传递得越厉害,读的吞吐量反而下降
+ * 开启读偏向模式之后:
+ * 1. readBias=true时,读线程不修改state,而是按(线程,锁)的哈希把锁对象发布到全局读者表READERS的一个槽中,
+ *    发布之后再检查一次readBias,仍然为true就加锁成功;不同线程落在不同的槽,槽之间隔开一个缓存行,互不干扰
+ * 2. 写线程照常修改state获取写锁,然后撤销偏向:readBias=false,扫描READERS,短暂自旋等待指向这把锁的槽被清空
+ *    读线程是"先发布,再检查readBias",写线程是"先清readBias,再扫描",两边都是volatile操作,
+ *    所以要么读线程看到readBias=false自己撤回,要么写线程扫描时看到这个槽
+ *    自旋之后还有读线程偏向持有读锁时,写线程回滚写锁,tryAcquire()返回false,和遇到普通读锁一样在同步队列中停车;
+ *    偏向持有读锁的线程释放时看到revokePending,通过releaseShared()唤醒它重试。所以撤销偏向不会在tryAcquire()中无限等待,
+ *    lockInterruptibly()和tryLock(timeout)的打断和超时照常生效,Condition.await()返回前重新获取写锁也走同样的流程
+ * 3. 撤销之后的一段时间内(扫描耗时的INHIBIT_MULTIPLIER倍)不重新开启偏向,之后由走普通流程加读锁成功的读线程重新开启,
+ *    写比较频繁时偏向自动失效,退化成原来的读写锁
+ * 语义保持不变:
+ * 1. 重入:线程已经通过偏向持有读锁时,再次加读锁只增加线程本地的计数,不管readBias是否已经被撤销(否则会和等待它释放的写线程死锁)
+ * 2. 锁降级(写->读):持有写锁时偏向一定已经被撤销,而且持有写锁期间不会重新开启(重新开启要求exclusiveCount为0),降级走原来的流程
+ * 3. 读锁不能升级:持有偏向读锁的线程加写锁时,和原来持有读锁时一样返回false,不会撤销偏向之后等待自己
+ * 4. tryLock()获取写锁时,同样只短暂自旋,遇到真正持有读锁的线程就回滚写锁并返回false,和原来一样不阻塞
+ * 注意:getReadLockCount()/getReadHoldCount()等监控方法只统计state中的读锁,不包括偏向持有的读锁
+ * Java拿不到当前线程所在的CPU核,所以读者表按线程哈希分槽,而不是严格的每核一个槽
+ */
+
+/**
+ * 开启读偏向模式的构造方法
+ */
+public ReentrantReadWriteLock(boolean fair, boolean readBiased) {
+    sync = fair ? new FairSync() : new NonfairSync();
+    sync.biasedMode = readBiased;
+    readerLock = new ReadLock(this);
+    writerLock = new WriteLock(this);
+}
+
+// ---------------------------- HoldCounter中新增的字段 ----------------------------
+
+// 通过偏向持有读锁的重入次数
+int biasedCount;
+// 偏向持有读锁时占用的READERS下标
+int biasedSlot;
+
+// ---------------------------- Sync中新增的字段 ----------------------------
+
+// 全局读者表的槽数,所有开启了读偏向模式的锁共用
+static final int READER_SLOTS = 1024;
+// 相邻的槽隔开16个引用(64字节,一个缓存行),避免伪共享
+static final int SLOT_STRIDE_SHIFT = 4;
+static final AtomicReferenceArray<Object> READERS =
+    new AtomicReferenceArray<Object>(READER_SLOTS << SLOT_STRIDE_SHIFT);
+// 撤销偏向之后,禁止重新开启的时间是扫描耗时的多少倍
+static final int INHIBIT_MULTIPLIER = 9;
+// 撤销偏向时,每个槽最多自旋的次数,超过之后回滚写锁
+static final int REVOKE_SPINS = 1 << 10;
+
+// 是否开启读偏向模式,构造时确定
+boolean biasedMode;
+// 当前是否偏向读线程
+volatile boolean readBias;
+// 这个时间(System.nanoTime())之前不重新开启偏向
+volatile long inhibitUntil;
+// 偏向已经撤销,但是还可能有读线程偏向持有读锁,写线程因此回滚了写锁;偏向持有读锁的线程释放时唤醒同步队列中的线程
+// 在扫描READERS之前设置,和读线程的"先清空槽,再检查revokePending"配对,不会丢失唤醒
+volatile boolean revokePending;
+// 锁在读者表中的哈希,和线程id一起决定槽的位置
+final int lockHash = System.identityHashCode(this);
+
+/**
+ * 读偏向的快路径,在tryAcquireShared()的最开始调用,成功返回true,失败走原来的流程
+ * 偏向模式下只用线程本地的HoldCounter计数,不读写firstReader和cachedHoldCounter这两个共享字段;
+ * 计数归零时也不从readHolds中移除,避免每次加锁都重新分配HoldCounter(原来的流程计数归零时仍然会移除)
+ */
+final boolean tryBiasedAcquire(Thread current) {
+    HoldCounter rh = readHolds.get();
+    // 重入:已经通过偏向持有读锁,直接计数
+    if (rh.biasedCount > 0) {
+        rh.biasedCount++;
+        return true;
+    }
+    // 和原来一样,队列中第一个是写线程(非公平锁)或者有线程排队(公平锁)时,读线程不抢锁
+    if (!readBias || readerShouldBlock())
+        return false;
+    int idx = slotIndex(current);
+    // 先发布,再检查readBias
+    if (READERS.compareAndSet(idx, null, this)) {
+        if (readBias) {
+            rh.biasedCount = 1;
+            rh.biasedSlot = idx;
+            return true;
+        }
+        // 写线程正在撤销偏向,撤回
+        READERS.set(idx, null);
+    }
+    // 槽被其他线程或者其他锁占用,走原来的流程
+    return false;
+}
+
+/**
+ * 在tryReleaseShared()的最开始调用,释放的是偏向持有的读锁时返回true
+ * 偏向持有的读锁不影响state;写线程撤销偏向失败回滚之后在同步队列中等待,由tryReleaseShared()根据revokePending决定是否唤醒
+ */
+final boolean tryBiasedRelease() {
+    HoldCounter rh = readHolds.get();
+    if (rh.biasedCount == 0)
+        return false;
+    if (--rh.biasedCount == 0)
+        READERS.set(rh.biasedSlot, null);
+    return true;
+}
+
+/**
+ * 当前线程是否通过偏向持有读锁,tryAcquire()中用来拒绝读锁升级
+ */
+final boolean holdsBiasedRead() {
+    return readHolds.get().biasedCount > 0;
+}
+
+/**
+ * 走原来的流程加读锁成功之后调用,满足条件时重新开启偏向
+ * 只有持有读锁并且没有线程持有写锁时才能开启:当前线程持有读锁期间其他线程拿不到写锁,
+ * 之后拿到写锁的线程一定能看到readBias=true并撤销;exclusiveCount不为0说明是锁降级,此时不能开启
+ */
+final void maybeEnableBias() {
+    if (biasedMode && !readBias &&
+        exclusiveCount(getState()) == 0 &&
+        System.nanoTime() - inhibitUntil >= 0L) {
+        // 下一个写线程会重新撤销偏向,之前等待的写线程由当前线程释放读锁时唤醒
+        revokePending = false;
+        readBias = true;
+    }
+}
+
+/**
+ * 获取写锁之后撤销偏向,检查是否还有读线程偏向持有这把锁
+ * 一个槽自旋REVOKE_SPINS次还没有清空就放弃,返回false,由调用方回滚写锁;不在这里无限等待,等待交给同步队列
+ */
+final boolean revokeBias() {
+    revokePending = true;
+    readBias = false;
+    long start = System.nanoTime();
+    try {
+        for (int i = 0; i < READER_SLOTS; i++) {
+            int idx = i << SLOT_STRIDE_SHIFT;
+            for (int spins = 0; READERS.get(idx) == this; spins++) {
+                if (spins >= REVOKE_SPINS)
+                    return false;
+                Thread.onSpinWait();
+            }
+        }
+        revokePending = false;
+        return true;
+    } finally {
+        long now = System.nanoTime();
+        inhibitUntil = now + (now - start) * INHIBIT_MULTIPLIER;
+    }
+}
+
+/**
+ * 撤销偏向失败时回滚刚获取的写锁,在tryAcquire()和tryWriteLock()中调用,此时state中只有当前线程的写锁
+ * 回滚期间可能有线程看到写锁被持有,进入了同步队列,唤醒队列中第一个线程;
+ * 第一个就是当前线程时不唤醒,否则它在acquireQueued()中停车会马上返回,一直空转
+ */
+final void rollbackWriteLock(Thread current) {
+    setExclusiveOwnerThread(null);
+    setState(0);
+    Thread first = getFirstQueuedThread();
+    if (first != null && first != current)
+        LockSupport.unpark(first);
+}
+
+private int slotIndex(Thread current) {
+    int h = (int) getThreadId(current) * 0x9E3779B9 ^ lockHash;
+    return ((h ^ (h >>> 16)) & (READER_SLOTS - 1)) << SLOT_STRIDE_SHIFT;
+}
+
+/**
+ * 非阻塞地获取写锁(WriteLock.tryLock()),读偏向模式下获取成功之后还要撤销偏向
+ */
+final boolean tryWriteLock() {
+    Thread current = Thread.currentThread();
+    int c = getState();
+    if (c != 0) {
+        int w = exclusiveCount(c);
+        if (w == 0 || current != getExclusiveOwnerThread())
+            return false;
+        if (w == MAX_COUNT)
+            throw new Error("Maximum lock count exceeded");
+    }
+    // 持有偏向读锁时不能升级,和原来持有读锁时一样
+    if (c == 0 && biasedMode && holdsBiasedRead())
+        return false;
+    if (!compareAndSetState(c, c + 1))
+        return false;
+    setExclusiveOwnerThread(current);
+    // 第一次获取写锁时撤销偏向;有读线程偏向持有读锁时回滚
+    if (c == 0 && (readBias || revokePending) && !revokeBias()) {
+        rollbackWriteLock(current);
+        return false;
+    }
+    return true;
+}
@@ -3,6 +3,9 @@
  */
 protected final int tryAcquireShared(int unused) {
     Thread current = Thread.currentThread();
+    // 读偏向模式的快路径,不修改state,见读锁偏向模式.java
+    if (biasedMode && tryBiasedAcquire(current))
+        return 1;
     // 获取锁资源的数值
     int c = getState();
     // 若exclusiveCount(c) != 0为true:表示写锁资源不为空,有线程持有写锁
@@ -51,6 +54,8 @@ protected final int tryAcquireShared(int unused) {
             // 将当前线程的读锁重入次数加1
             rh.count++;
         }
+        // 读偏向模式下,满足条件时重新开启偏向
+        maybeEnableBias();
         return 1;
     }
     // 首次获取读锁失败后,重试获取
@@ -127,6 +132,7 @@ final int fullTryAcquireShared(Thread current) {
                 rh.count++;
                 cachedHoldCounter = rh; // cache for release
             }
+            maybeEnableBias();
             return 1;
         }
     }
@@ -137,6 +143,8 @@ final int fullTryAcquireShared(Thread current) {
  * 读锁尝试加锁失败之后的流程,进入同步队列中排队
  */
 private void doAcquireShared(int arg) {
+    // JFR:能走到这里说明tryAcquireShared()已经失败了,是竞争的慢路径;没有录制时为null
+    ReadLockContendedEvent ev = ReadLockContendedEvent.start(this);
     // 将当前线程包装成Node(共享模式)加入同步队列
     final Node node = addWaiter(Node.SHARED);
     boolean failed = true;
@@ -155,6 +163,8 @@ private void doAcquireShared(int arg) {
                     if (interrupted)
                         selfInterrupt();
                     failed = false;
+                    if (ev != null)
+                        ev.finish();
                     return;
                 }
             }
@@ -171,6 +181,42 @@ private void doAcquireShared(int arg) {
 }
 
 
+/**
+ * JFR事件:读锁在同步队列中排队等待的时间,超过阈值才记录
+ * 采样分析器只能看到线程停在parkAndCheckInterrupt(),这个事件给出等待了多久,以及开始等待时是哪个线程持有写锁
+ */
+@Name("threadpool.ReadLockContended")
+@Label("Read Lock Contended")
+@Category({"Lock Threadpool", "Lock"})
+@Threshold("1 ms")
+static final class ReadLockContendedEvent extends Event {
+    static final EventType TYPE = EventType.getEventType(ReadLockContendedEvent.class);
+
+    @Label("Lock Class")
+    Class<?> lockClass;
+
+    // 开始等待时持有写锁的线程,为null说明是在给排在前面的写线程让路(公平锁,或者非公平锁的apparentlyFirstQueuedIsExclusive())
+    @Label("Write Owner")
+    Thread writeOwner;
+
+    static ReadLockContendedEvent start(AbstractQueuedSynchronizer sync) {
+        if (!TYPE.isEnabled())
+            return null;
+        ReadLockContendedEvent e = new ReadLockContendedEvent();
+        e.lockClass = sync.getClass();
+        e.writeOwner = (sync instanceof Sync) ? ((Sync) sync).getOwner() : null;
+        e.begin();
+        return e;
+    }
+
+    void finish() {
+        end();
+        if (shouldCommit())
+            commit();
+    }
+}
+
+
 private void setHeadAndPropagate(Node node, int propagate) {
     Node h = head;
     // 设置新的头节点,
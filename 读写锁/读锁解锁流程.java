@@ -3,6 +3,10 @@
  */
 protected final boolean tryReleaseShared(int unused) {
     Thread current = Thread.currentThread();
+    // 读偏向模式下,先释放偏向持有的读锁,不修改state,见读锁偏向模式.java
+    // 有写线程因为偏向持有的读锁回滚了写锁时返回true,由releaseShared()唤醒同步队列中的线程重试
+    if (biasedMode && tryBiasedRelease())
+        return revokePending;
     // 判断当前线程是否第一个加读锁的线程
     if (firstReader == current) {
         // 第一个加读锁的线程是否存在重入